@@ -20,4 +20,81 @@ BEGIN
         paid INT NOT NULL,
         cancelled INT NOT NULL
     )
-END;
\ No newline at end of file
+END;
+
+-- Tables and columns added since the tables above were first created. Each
+-- step checks whether it is needed, so this runs on a new database, upgrades
+-- an existing one, and can be run again.
+
+IF OBJECT_ID('RESERVATIONS_HISTORY') IS NULL
+    CREATE TABLE RESERVATIONS_HISTORY
+    (
+        id INT PRIMARY KEY,
+        userid VARCHAR(20),
+        flight1 INT NOT NULL,
+        flight2 INT,
+        paid INT NOT NULL,
+        cancelled INT NOT NULL
+    );
+
+IF OBJECT_ID('BOOKED_SEATS') IS NULL
+    CREATE TABLE BOOKED_SEATS
+    (
+        id INT PRIMARY KEY,
+        flight1 INT NOT NULL,
+        flight2 INT,
+        cancelled INT NOT NULL
+    );
+
+IF OBJECT_ID('REPLICA_HEARTBEAT') IS NULL
+    CREATE TABLE REPLICA_HEARTBEAT
+    (
+        id INT PRIMARY KEY,
+        beat_at BIGINT NOT NULL
+    );
+
+IF OBJECT_ID('ONE_STOP_CONNECTIONS') IS NULL
+BEGIN
+    CREATE TABLE ONE_STOP_CONNECTIONS
+    (
+        day_of_month INT NOT NULL,
+        origin_city VARCHAR(34),
+        dest_city VARCHAR(34),
+        total_time INT,
+        fid1 INT NOT NULL,
+        fid2 INT NOT NULL,
+        route_rank INT NOT NULL
+    )
+
+    CREATE CLUSTERED INDEX IX_ONE_STOP_ROUTE ON ONE_STOP_CONNECTIONS (origin_city, dest_city, day_of_month, total_time, fid1, fid2)
+END;
+
+IF OBJECT_ID('ONE_STOP_CHECKSUMS') IS NULL
+    CREATE TABLE ONE_STOP_CHECKSUMS
+    (
+        day_of_month INT PRIMARY KEY,
+        checksum INT NOT NULL,
+        max_per_route INT NOT NULL
+    );
+
+-- Bit day_of_month - 1 is set for every day the user has a reservation on,
+-- as the BOOK batch sets it. Filled in from the existing reservations when
+-- the column is added; the UPDATE is run with EXEC so it is only compiled
+-- once the column exists.
+IF COL_LENGTH('USERS', 'booked_days') IS NULL
+BEGIN
+    ALTER TABLE USERS ADD booked_days INT NOT NULL DEFAULT 0
+
+    EXEC('UPDATE U SET booked_days = ISNULL((SELECT SUM(DISTINCT POWER(2, F.day_of_month - 1)) '
+        + 'FROM (SELECT userid, flight1 FROM RESERVATIONS WHERE cancelled = 0 '
+        + 'UNION ALL SELECT userid, flight1 FROM RESERVATIONS_HISTORY WHERE cancelled = 0) AS R '
+        + 'INNER JOIN FLIGHTS AS F ON F.fid = R.flight1 WHERE R.userid = U.username), 0) FROM USERS AS U')
+END;
+
+IF COL_LENGTH('USERS', 'token_version') IS NULL
+    ALTER TABLE USERS ADD token_version INT NOT NULL DEFAULT 0;
+
+-- Raised by every book, pay and cancel, so instances can tell whether the
+-- reservations they cached for the user are current (see ReservationCache)
+IF COL_LENGTH('USERS', 'reservations_version') IS NULL
+    ALTER TABLE USERS ADD reservations_version INT NOT NULL DEFAULT 0;
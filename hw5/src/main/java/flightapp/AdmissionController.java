@@ -0,0 +1,240 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Admission control in front of {@link FlightService#execute(Query, String)}.
+ *
+ * Commands are grouped into classes, and each class has a cap on how many of
+ * its commands may run at once. A command that finds its class full waits in
+ * a bounded queue for up to a timeout; if the queue is full or the timeout
+ * passes it is rejected right away with an error, so the work that does get
+ * in keeps a flat latency instead of piling up as deadlocks in the database.
+ * Each user (or session not logged in) also has a token bucket that limits
+ * how fast it can issue commands. A bucket left idle long enough to refill is
+ * the same as a new one, so such buckets are dropped every so often.
+ *
+ * Enabled with {@code flightapp.admission=true}. Limits are set with
+ * {@code flightapp.admission.<class>.max_concurrent} for the classes auth,
+ * search, read and write, and with {@code flightapp.admission.max_queue},
+ * {@code flightapp.admission.timeout_ms}, {@code flightapp.admission.user_rate}
+ * (commands per second) and {@code flightapp.admission.user_burst}.
+ */
+public class AdmissionController {
+  static final String OVERLOADED = "Error: server is overloaded, please try again later\n";
+  static final String RATE_LIMITED = "Error: too many requests, please slow down\n";
+
+  private static final Permit UNLIMITED = new Permit(null, null);
+
+  // How often idle token buckets are looked for
+  private static final long PRUNE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  private static volatile AdmissionController instance;
+  private static final Lock instanceLock = new ReentrantLock();
+
+  /**
+   * Commands that compete for the same resources.
+   */
+  enum CommandClass {
+    AUTH(8), SEARCH(32), READ(16), WRITE(8);
+
+    final int defaultMaxConcurrent;
+
+    CommandClass(int defaultMaxConcurrent) {
+      this.defaultMaxConcurrent = defaultMaxConcurrent;
+    }
+
+    static CommandClass of(String command) {
+      switch (command) {
+        case "login":
+        case "create":
+        case "resume":
+        case "token":
+        case "revoke":
+          return AUTH;
+        case "search":
+          return SEARCH;
+        case "reservations":
+          return READ;
+        case "book":
+        case "pay":
+        case "cancel":
+          return WRITE;
+        default:
+          return null;
+      }
+    }
+  }
+
+  /**
+   * Result of asking to run a command. An admitted command must release its
+   * permit when it finishes.
+   */
+  public static class Permit {
+    private final Semaphore semaphore;
+    private final String rejection;
+
+    private Permit(Semaphore semaphore, String rejection) {
+      this.semaphore = semaphore;
+      this.rejection = rejection;
+    }
+
+    public boolean admitted() {
+      return rejection == null;
+    }
+
+    /**
+     * The error to return instead of running the command.
+     */
+    public String rejection() {
+      return rejection;
+    }
+
+    public void release() {
+      if (semaphore != null) {
+        semaphore.release();
+      }
+    }
+  }
+
+  private static class TokenBucket {
+    private final Lock lock = new ReentrantLock();
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    TokenBucket(double burst) {
+      this.tokens = burst;
+    }
+
+    /**
+     * Whether the bucket has not been used since the given time.
+     */
+    boolean idleSince(long nanos) {
+      lock.lock();
+      try {
+        return lastRefill - nanos < 0;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    boolean tryTake(double ratePerSecond, double burst) {
+      lock.lock();
+      try {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) / 1e9 * ratePerSecond);
+        lastRefill = now;
+        if (tokens < 1) {
+          return false;
+        }
+        tokens -= 1;
+        return true;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private final Map<CommandClass, Semaphore> running = new EnumMap<>(CommandClass.class);
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+  private final AtomicLong lastPrune = new AtomicLong(System.nanoTime());
+  private final int maxQueue;
+  private final long timeoutMillis;
+  private final double userRate;
+  private final double userBurst;
+
+  private AdmissionController() {
+    for (CommandClass c : CommandClass.values()) {
+      int max = Settings.getInt("flightapp.admission." + c.name().toLowerCase() + ".max_concurrent",
+          c.defaultMaxConcurrent);
+      running.put(c, new Semaphore(max, true));
+    }
+    maxQueue = Settings.getInt("flightapp.admission.max_queue", 64);
+    timeoutMillis = Settings.getLong("flightapp.admission.timeout_ms", 2000);
+    userRate = Settings.getDouble("flightapp.admission.user_rate", 20);
+    userBurst = Settings.getDouble("flightapp.admission.user_burst", 40);
+  }
+
+  /**
+   * Decides whether the session may run the given command now, waiting for a
+   * slot if its class is full.
+   *
+   * @param q       the session's query connection
+   * @param command the command name, e.g. "book"
+   */
+  public static Permit admit(Query q, String command) {
+    if (!Settings.getBoolean("flightapp.admission", false)) {
+      return UNLIMITED;
+    }
+
+    AdmissionController controller = instance;
+    if (controller == null) {
+      instanceLock.lock();
+      try {
+        controller = instance;
+        if (controller == null) {
+          controller = new AdmissionController();
+          instance = controller;
+        }
+      } finally {
+        instanceLock.unlock();
+      }
+    }
+    return controller.tryAdmit(q, command);
+  }
+
+  private Permit tryAdmit(Query q, String command) {
+    CommandClass commandClass = CommandClass.of(command);
+    if (commandClass == null) {
+      return UNLIMITED;
+    }
+
+    String username = q.currentUsername();
+    String client = username != null ? "user:" + username : "session:" + q.sessionId();
+    pruneBuckets();
+    if (!buckets.computeIfAbsent(client, k -> new TokenBucket(userBurst)).tryTake(userRate, userBurst)) {
+      return new Permit(null, RATE_LIMITED);
+    }
+
+    Semaphore semaphore = running.get(commandClass);
+    if (semaphore.tryAcquire()) {
+      return new Permit(semaphore, null);
+    }
+
+    if (waiting.incrementAndGet() > maxQueue) {
+      waiting.decrementAndGet();
+      return new Permit(null, OVERLOADED);
+    }
+    try {
+      if (semaphore.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        return new Permit(semaphore, null);
+      }
+      return new Permit(null, OVERLOADED);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return new Permit(null, OVERLOADED);
+    } finally {
+      waiting.decrementAndGet();
+    }
+  }
+
+  /**
+   * Drops the buckets that have had time to refill completely since they were
+   * last used, at most once every PRUNE_INTERVAL_NANOS.
+   */
+  private void pruneBuckets() {
+    long now = System.nanoTime();
+    long last = lastPrune.get();
+    // Buckets that never refill are never idle
+    if (userRate <= 0 || now - last < PRUNE_INTERVAL_NANOS || !lastPrune.compareAndSet(last, now)) {
+      return;
+    }
+    long refillNanos = (long) (userBurst / userRate * 1e9);
+    long idleSince = now - Math.max(refillNanos, PRUNE_INTERVAL_NANOS);
+    buckets.values().removeIf(bucket -> bucket.idleSince(idleSince));
+  }
+}
@@ -0,0 +1,372 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Group commit for bookings. Sessions hand their booking to a single
+ * coordinator thread, which collects the requests that arrive within a short
+ * window and applies all of them in one database transaction. Capacity and
+ * the one-booking-per-day rule are checked for the whole group at once, and
+ * each caller gets its own outcome back. Each booking is written under its
+ * own savepoint, so one that fails is rolled back alone and the rest of the
+ * group still commits; a deadlock retries the whole group.
+ *
+ * Enabled with {@code flightapp.group_commit=true}. The window and the largest
+ * group are set with {@code flightapp.group_commit.window_ms} and
+ * {@code flightapp.group_commit.max_batch}.
+ *
+ * A caller waits at most {@code flightapp.group_commit.timeout_ms} (default
+ * 30000) for its group, since it holds the user's lock and possibly seat locks
+ * while it waits. A booking that times out is skipped if its group has not
+ * started yet, but may still commit if it has, so the caller has to treat its
+ * reservations as unknown. If the coordinator thread dies, the bookings
+ * waiting for it fail and the next booking starts a new coordinator.
+ */
+public class BookingCoordinator {
+  private static final int MAX_RETRIES = 3;
+
+  // Seconds to wait for the server when checking the connection
+  private static final int VALID_TIMEOUT = 5;
+
+  // Archived reservations keep their ids, so new ids come after both tables
+  private static final String GET_RESERVATION_ID = "SELECT ISNULL(MAX(id), 0) AS id FROM "
+      + "(SELECT MAX(id) AS id FROM RESERVATIONS UNION ALL SELECT MAX(id) FROM RESERVATIONS_HISTORY) AS R";
+
+  private static final String CREATE_RESERVATION = "INSERT INTO RESERVATIONS (id, userid, flight1, flight2, paid, cancelled) VALUES (?, ?, ?, ?, 0, 0)";
+
+  // The IN lists are filled in per group
+  private static final String GET_BOOKED_DAYS = "SELECT username, booked_days, reservations_version FROM USERS WITH (UPDLOCK) "
+      + "WHERE username IN (%s)";
+
+  private static final String ADD_BOOKED_DAY = "UPDATE USERS SET booked_days = booked_days | ?, "
+      + "reservations_version = reservations_version + 1 WHERE username = ?";
+
+  private static final String GET_BOOKED_SEATS = "SELECT fid, Count(*) AS count FROM "
+      + "(SELECT flight1 AS fid FROM RESERVATIONS WHERE cancelled = 0 "
+      + "UNION ALL SELECT flight2 AS fid FROM RESERVATIONS WHERE cancelled = 0 AND flight2 IS NOT NULL) AS R "
+      + "WHERE fid IN (%s) GROUP BY fid";
+
+  private static volatile BookingCoordinator instance;
+  private static final Lock instanceLock = new ReentrantLock();
+
+  private final ConnectionFactory factory;
+  // Reopened when it is found closed or broken, so only touched by the worker
+  private Connection conn;
+  private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+  private final long windowNanos;
+  private final int maxBatch;
+  private final long timeoutMillis;
+  // Set once the worker has exited, after which nothing takes from the queue
+  private volatile boolean stopped;
+
+  // Flights the group being applied leaves without seats
+  private final Set<Integer> soldOut = new HashSet<>();
+
+  /**
+   * Outcome of a single booking in a group.
+   */
+  public enum Outcome {
+    BOOKED, SAME_DAY, FAILED,
+    // Gave up waiting; the booking may or may not have been committed
+    TIMED_OUT
+  }
+
+  public static class Result {
+    public final Outcome outcome;
+    public final int reservationId;
+    // The user's reservations_version after a booking, see ReservationCache
+    public final int version;
+
+    Result(Outcome outcome, int reservationId) {
+      this(outcome, reservationId, 0);
+    }
+
+    Result(Outcome outcome, int reservationId, int version) {
+      this.outcome = outcome;
+      this.reservationId = reservationId;
+      this.version = version;
+    }
+  }
+
+  private static class Request {
+    final String username;
+    final List<Query.Flight> flights;
+    final CompletableFuture<Result> result = new CompletableFuture<>();
+
+    Request(String username, List<Query.Flight> flights) {
+      this.username = username;
+      this.flights = flights;
+    }
+  }
+
+  /**
+   * Returns the coordinator shared by all sessions in this JVM, opening its
+   * connection with the given factory the first time.
+   */
+  public static BookingCoordinator getInstance(ConnectionFactory factory) throws Exception {
+    BookingCoordinator coordinator = instance;
+    if (coordinator == null || coordinator.stopped) {
+      instanceLock.lock();
+      try {
+        coordinator = instance;
+        if (coordinator == null || coordinator.stopped) {
+          coordinator = new BookingCoordinator(factory, Settings.getLong("flightapp.group_commit.window_ms", 5),
+              Settings.getInt("flightapp.group_commit.max_batch", 64),
+              Settings.getLong("flightapp.group_commit.timeout_ms", 30000));
+          instance = coordinator;
+        }
+      } finally {
+        instanceLock.unlock();
+      }
+    }
+    return coordinator;
+  }
+
+  BookingCoordinator(ConnectionFactory factory, long windowMillis, int maxBatch, long timeoutMillis)
+      throws Exception {
+    this.factory = factory;
+    this.conn = factory.open();
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.maxBatch = maxBatch;
+    this.timeoutMillis = timeoutMillis;
+
+    Thread worker = new Thread(this::run, "booking-coordinator");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Books the given flights for the user as part of the next group and waits
+   * for the group to commit, or for the timeout.
+   */
+  public Result book(String username, List<Query.Flight> flights) throws InterruptedException, ExecutionException {
+    Request request = new Request(username.toLowerCase(), flights);
+    queue.add(request);
+    // The worker may have exited before it could see the request
+    if (stopped) {
+      failQueued();
+    }
+    try {
+      return request.result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      // Unless the result came in just now, the worker skips or ignores it
+      request.result.complete(new Result(Outcome.TIMED_OUT, 0));
+      return request.result.get();
+    }
+  }
+
+  private void run() {
+    List<Request> group = new ArrayList<>();
+    try {
+      while (true) {
+        try {
+          group.add(queue.take());
+          long deadline = System.nanoTime() + windowNanos;
+          while (group.size() < maxBatch) {
+            Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (next == null) {
+              break;
+            }
+            group.add(next);
+          }
+          // Callers that timed out have been answered already
+          group.removeIf(r -> r.result.isDone());
+          if (!group.isEmpty()) {
+            commit(group);
+          }
+        } catch (InterruptedException e) {
+          return;
+        } catch (RuntimeException e) {
+          System.err.println("Failed to apply a booking group: " + e.getMessage());
+          fail(group);
+        }
+        group.clear();
+      }
+    } finally {
+      stopped = true;
+      fail(group);
+      failQueued();
+    }
+  }
+
+  private void failQueued() {
+    List<Request> queued = new ArrayList<>();
+    queue.drainTo(queued);
+    fail(queued);
+  }
+
+  private static void fail(List<Request> requests) {
+    for (Request r : requests) {
+      r.result.complete(new Result(Outcome.FAILED, 0));
+    }
+  }
+
+  /**
+   * Applies the group in one transaction, retrying the whole group on deadlock.
+   */
+  private void commit(List<Request> group) {
+    for (int attempt = 0; attempt <= MAX_RETRIES; attempt++) {
+      try {
+        ensureOpen();
+        conn.setAutoCommit(false);
+        List<Result> results = apply(group);
+        conn.commit();
+        conn.setAutoCommit(true);
+        for (int fid : soldOut) {
+          FullFlights.markFull(fid);
+        }
+
+        for (int i = 0; i < group.size(); i++) {
+          group.get(i).result.complete(results.get(i));
+        }
+        return;
+      } catch (SQLException e) {
+        try {
+          conn.rollback();
+          conn.setAutoCommit(true);
+        } catch (SQLException e2) {
+          System.err.println("Failed to roll back a booking group: " + e2.getMessage());
+        }
+        if (e.getErrorCode() != 1205) {
+          break;
+        }
+      }
+    }
+
+    fail(group);
+  }
+
+  /**
+   * Reopens the connection if it was closed or the server no longer answers
+   * on it.
+   */
+  private void ensureOpen() throws SQLException {
+    if (conn.isValid(VALID_TIMEOUT)) {
+      return;
+    }
+    try {
+      conn.close();
+    } catch (SQLException e) {
+      // Already broken
+    }
+    try {
+      conn = factory.open();
+    } catch (IOException e) {
+      throw new SQLException("Failed to reopen the booking connection: " + e.getMessage(), e);
+    }
+  }
+
+  private List<Result> apply(List<Request> group) throws SQLException {
+    soldOut.clear();
+    Set<String> usernames = new LinkedHashSet<>();
+    Set<Integer> fids = new LinkedHashSet<>();
+    for (Request r : group) {
+      usernames.add(r.username);
+      for (Query.Flight f : r.flights) {
+        fids.add(f.fid);
+      }
+    }
+
+    Map<String, Integer> bookedDays = new HashMap<>();
+    Map<String, Integer> versions = new HashMap<>();
+    try (PreparedStatement ps = conn.prepareStatement(String.format(GET_BOOKED_DAYS, placeholders(usernames.size())))) {
+      int i = 1;
+      for (String username : usernames) {
+        ps.setString(i++, username);
+      }
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          bookedDays.put(rs.getString("username"), rs.getInt("booked_days"));
+          versions.put(rs.getString("username"), rs.getInt("reservations_version"));
+        }
+      }
+    }
+
+    Map<Integer, Integer> bookedSeats = new HashMap<>();
+    try (PreparedStatement ps = conn.prepareStatement(String.format(GET_BOOKED_SEATS, placeholders(fids.size())))) {
+      int i = 1;
+      for (int fid : fids) {
+        ps.setInt(i++, fid);
+      }
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          bookedSeats.put(rs.getInt("fid"), rs.getInt("count"));
+        }
+      }
+    }
+
+    int nextId;
+    try (PreparedStatement ps = conn.prepareStatement(GET_RESERVATION_ID); ResultSet rs = ps.executeQuery()) {
+      rs.next();
+      nextId = rs.getInt("id") + 1;
+    }
+
+    List<Result> results = new ArrayList<>();
+    try (PreparedStatement insert = conn.prepareStatement(CREATE_RESERVATION);
+        PreparedStatement addBookedDay = conn.prepareStatement(ADD_BOOKED_DAY)) {
+      for (Request r : group) {
+        int dayBit = ReservationCache.dayBit(r.flights.get(0).dayOfMonth);
+        int days = bookedDays.getOrDefault(r.username, 0);
+        if ((days & dayBit) != 0) {
+          results.add(new Result(Outcome.SAME_DAY, 0));
+          continue;
+        }
+
+        boolean full = false;
+        for (Query.Flight f : r.flights) {
+          if (bookedSeats.getOrDefault(f.fid, 0) + 1 > f.capacity) {
+            full = true;
+            soldOut.add(f.fid);
+          }
+        }
+        if (full) {
+          results.add(new Result(Outcome.FAILED, 0));
+          continue;
+        }
+
+        // The counts above only take this booking once it is written
+        Savepoint savepoint = conn.setSavepoint();
+        try {
+          insert.setInt(1, nextId);
+          insert.setString(2, r.username);
+          insert.setInt(3, r.flights.get(0).fid);
+          if (r.flights.size() == 2) {
+            insert.setInt(4, r.flights.get(1).fid);
+          } else {
+            insert.setNull(4, Types.INTEGER);
+          }
+          insert.executeUpdate();
+          addBookedDay.setInt(1, dayBit);
+          addBookedDay.setString(2, r.username);
+          addBookedDay.executeUpdate();
+        } catch (SQLException e) {
+          // A deadlock has already rolled back the whole transaction
+          if (e.getErrorCode() == 1205) {
+            throw e;
+          }
+          conn.rollback(savepoint);
+          System.err.println("Failed to book for " + r.username + " in a group: " + e.getMessage());
+          results.add(new Result(Outcome.FAILED, 0));
+          continue;
+        }
+
+        for (Query.Flight f : r.flights) {
+          if (bookedSeats.merge(f.fid, 1, Integer::sum) >= f.capacity) {
+            soldOut.add(f.fid);
+          }
+        }
+        bookedDays.put(r.username, days | dayBit);
+        results.add(new Result(Outcome.BOOKED, nextId++, versions.merge(r.username, 1, Integer::sum)));
+      }
+    }
+    return results;
+  }
+
+  private static String placeholders(int n) {
+    return String.join(", ", Collections.nCopies(n, "?"));
+  }
+}
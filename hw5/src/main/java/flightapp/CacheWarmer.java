@@ -0,0 +1,279 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Warms caches and query plans for the busiest routes and flights in the
+ * background when the application starts, so the first sessions after a
+ * deploy do not pay for a cold start.
+ *
+ * With {@code flightapp.warmup.routes=N}, the warm-up takes the N routes booked
+ * most often among the last {@code flightapp.warmup.history} reservations
+ * (default 10000), the N routes searched most often in the command log at
+ * {@code flightapp.warmup.search_log} (default the newest {@link CommandRecorder}
+ * log of an earlier run, if there is one) and the N flights booked most often.
+ * Routes and flights can also be listed in {@code flightapp.warmup.file}, one
+ * per line as a search would give them, e.g. {@code "Seattle WA" "Boston MA" 1}
+ * or {@code "Seattle WA" "Boston MA" 1-7}, or as a single fid.
+ *
+ * For each route the direct and one-stop searches are run (see
+ * {@link Query#primeRoute}), on the replica too if there is one, which compiles
+ * their plans and reads the route's flights into the server's buffer pool. For
+ * each flight its seats taken are counted the way a booking counts them.
+ * {@link FullFlights} is loaded first.
+ *
+ * {@link FlightService} waits for the warm-up before it shows its prompt, at
+ * most {@code flightapp.warmup.timeout_ms} (default 30000).
+ */
+public class CacheWarmer {
+  // Itineraries go from the first flight's origin to the last flight's
+  // destination
+  private static final String GET_BOOKED_ROUTES = "SELECT TOP (?) F1.origin_city, "
+      + "ISNULL(F2.dest_city, F1.dest_city) AS dest_city, F1.day_of_month "
+      + "FROM (SELECT TOP (?) flight1, flight2 FROM %s ORDER BY id DESC) AS R "
+      + "INNER JOIN FLIGHTS AS F1 ON F1.fid = R.flight1 LEFT OUTER JOIN FLIGHTS AS F2 ON F2.fid = R.flight2 "
+      + "GROUP BY F1.origin_city, ISNULL(F2.dest_city, F1.dest_city), F1.day_of_month ORDER BY COUNT(*) DESC";
+
+  private static final String GET_BOOKED_FLIGHTS = "SELECT TOP (?) L.fid "
+      + "FROM (SELECT TOP (?) flight1, flight2 FROM %s ORDER BY id DESC) AS R "
+      + "CROSS APPLY (VALUES (R.flight1), (R.flight2)) AS L (fid) "
+      + "WHERE L.fid IS NOT NULL GROUP BY L.fid ORDER BY COUNT(*) DESC";
+
+  private static final String COUNT_SEATS_TAKEN = "SELECT F.capacity, (SELECT COUNT(*) FROM %s AS R "
+      + "WHERE R.cancelled = 0 AND (R.flight1 = F.fid OR R.flight2 = F.fid)) AS taken FROM FLIGHTS AS F WHERE F.fid = ?";
+
+  // Rows read per search, enough for a first page
+  private static final int ROWS_PER_SEARCH = 20;
+
+  private static volatile CountDownLatch done;
+  private static final Lock startLock = new ReentrantLock();
+
+  /**
+   * A search's origin, destination and days.
+   */
+  private static class Route {
+    final String originCity;
+    final String destinationCity;
+    final int firstDay;
+    final int lastDay;
+
+    Route(String originCity, String destinationCity, int firstDay, int lastDay) {
+      this.originCity = originCity;
+      this.destinationCity = destinationCity;
+      this.firstDay = firstDay;
+      this.lastDay = lastDay;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Route)) {
+        return false;
+      }
+      Route r = (Route) o;
+      return originCity.equalsIgnoreCase(r.originCity) && destinationCity.equalsIgnoreCase(r.destinationCity)
+          && firstDay == r.firstDay && lastDay == r.lastDay;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(originCity.toLowerCase(), destinationCity.toLowerCase(), firstDay, lastDay);
+    }
+  }
+
+  public static boolean enabled() {
+    return Settings.getInt("flightapp.warmup.routes", 0) > 0 || Settings.get("flightapp.warmup.file", null) != null;
+  }
+
+  /**
+   * Starts warming up in the background, if enabled and not already started.
+   */
+  public static void start(ConnectionFactory factory) {
+    if (!enabled() || done != null) {
+      return;
+    }
+
+    startLock.lock();
+    try {
+      if (done != null) {
+        return;
+      }
+      CountDownLatch latch = new CountDownLatch(1);
+      Thread warmer = new Thread(() -> {
+        try {
+          warm(factory);
+        } finally {
+          latch.countDown();
+        }
+      }, "cache-warmer");
+      warmer.setDaemon(true);
+      warmer.start();
+      done = latch;
+    } finally {
+      startLock.unlock();
+    }
+  }
+
+  /**
+   * Waits for a started warm-up to finish, at most
+   * {@code flightapp.warmup.timeout_ms}.
+   */
+  public static void awaitReady() {
+    CountDownLatch latch = done;
+    if (latch == null) {
+      return;
+    }
+    long timeoutMillis = Settings.getLong("flightapp.warmup.timeout_ms", 30000);
+    try {
+      if (!latch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        System.err.println("Cache warm-up did not finish in " + timeoutMillis + " ms, continuing in the background");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void warm(ConnectionFactory factory) {
+    long start = System.nanoTime();
+    int top = Settings.getInt("flightapp.warmup.routes", 0);
+    int history = Settings.getInt("flightapp.warmup.history", 10000);
+    // Bookings are in BOOKED_SEATS on the home database when users are sharded
+    String bookings = ShardRouter.sharded() ? "BOOKED_SEATS" : "RESERVATIONS";
+
+    Set<Route> routes = new LinkedHashSet<>();
+    Set<Integer> fids = new LinkedHashSet<>();
+    readFile(routes, fids);
+    routes.addAll(searchedRoutes(top));
+
+    try (Connection conn = factory.open()) {
+      StatementCache statements = new StatementCache(conn);
+      FullFlights.ensureLoaded(statements);
+
+      if (top > 0) {
+        try (PreparedStatement s = conn.prepareStatement(String.format(GET_BOOKED_ROUTES, bookings))) {
+          s.setInt(1, top);
+          s.setInt(2, history);
+          try (ResultSet rs = s.executeQuery()) {
+            while (rs.next()) {
+              int day = rs.getInt("day_of_month");
+              routes.add(new Route(rs.getString("origin_city"), rs.getString("dest_city"), day, day));
+            }
+          }
+        }
+        try (PreparedStatement s = conn.prepareStatement(String.format(GET_BOOKED_FLIGHTS, bookings))) {
+          s.setInt(1, top);
+          s.setInt(2, history);
+          try (ResultSet rs = s.executeQuery()) {
+            while (rs.next()) {
+              fids.add(rs.getInt("fid"));
+            }
+          }
+        }
+      }
+
+      primeRoutes(statements, routes);
+      try (PreparedStatement s = conn.prepareStatement(String.format(COUNT_SEATS_TAKEN, bookings))) {
+        for (int fid : fids) {
+          s.setInt(1, fid);
+          s.executeQuery().close();
+        }
+      }
+    } catch (SQLException | IOException e) {
+      System.err.println("Cache warm-up failed: " + e.getMessage());
+      return;
+    }
+
+    if (ReplicaRouter.enabled()) {
+      try (Connection replica = ReplicaRouter.factory().open()) {
+        primeRoutes(new StatementCache(replica), routes);
+      } catch (SQLException | IOException e) {
+        System.err.println("Cache warm-up of the replica failed: " + e.getMessage());
+      }
+    }
+
+    System.err.println(String.format("Warmed up %d route(s) and %d flight(s) in %d ms", routes.size(), fids.size(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+  }
+
+  private static void primeRoutes(StatementCache statements, Set<Route> routes) throws SQLException {
+    for (Route r : routes) {
+      Query.primeRoute(statements, r.originCity, r.destinationCity, r.firstDay, r.lastDay, ROWS_PER_SEARCH);
+    }
+  }
+
+  /**
+   * Adds the routes and flights listed in {@code flightapp.warmup.file}.
+   */
+  private static void readFile(Set<Route> routes, Set<Integer> fids) {
+    String path = Settings.get("flightapp.warmup.file", null);
+    if (path == null) {
+      return;
+    }
+    try {
+      for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+        String[] tokens = FlightService.tokenize(line.trim());
+        if (tokens.length == 1) {
+          fids.add(Integer.parseInt(tokens[0]));
+        } else if (tokens.length == 3) {
+          routes.add(route(tokens[0], tokens[1], tokens[2]));
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      System.err.println("Failed to read " + path + ", warming up from history only: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Returns the routes searched most often in the command log, most searched
+   * first.
+   */
+  private static List<Route> searchedRoutes(int top) {
+    String path = Settings.get("flightapp.warmup.search_log", null);
+    String recordPath = Settings.get("flightapp.record", null);
+    if (top <= 0 || (path == null && recordPath == null)) {
+      return Collections.emptyList();
+    }
+    if (path == null) {
+      try {
+        Path latest = CommandRecorder.latestRecording(recordPath);
+        if (latest == null) {
+          return Collections.emptyList();
+        }
+        path = latest.toString();
+      } catch (IOException e) {
+        System.err.println("Failed to find the previous command log: " + e.getMessage());
+        return Collections.emptyList();
+      }
+    } else if (!Files.exists(Paths.get(path))) {
+      return Collections.emptyList();
+    }
+
+    Map<Route, Integer> searches = new HashMap<>();
+    try {
+      for (CommandReplay.Recorded recorded : CommandReplay.read(path)) {
+        String[] tokens = FlightService.tokenize(recorded.command);
+        if (tokens.length >= 6 && tokens[0].equals("search")) {
+          searches.merge(route(tokens[1], tokens[2], tokens[4]), 1, Integer::sum);
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      System.err.println("Failed to read the searches in " + path + ": " + e.getMessage());
+    }
+
+    List<Route> routes = new ArrayList<>(searches.keySet());
+    routes.sort(Comparator.comparing((Route r) -> searches.get(r)).reversed());
+    return routes.subList(0, Math.min(top, routes.size()));
+  }
+
+  private static Route route(String originCity, String destinationCity, String days) {
+    String[] range = days.split("-", 2);
+    int firstDay = Integer.parseInt(range[0]);
+    int lastDay = range.length == 2 ? Integer.parseInt(range[1]) : firstDay;
+    return new Route(originCity, destinationCity, firstDay, lastDay);
+  }
+}
@@ -0,0 +1,210 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.regex.Pattern;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Records the commands sessions send to {@link FlightService#execute(Query, String)}
+ * so that real traffic can be replayed later with {@link CommandReplay}.
+ *
+ * Enabled by setting {@code flightapp.record} to a path; each run writes its
+ * own log next to it, named {@code <path>.<yyyyMMdd-HHmmssSSS>} after when
+ * recording started, so the logs of earlier runs are kept. A log starts with
+ * the wall clock time recording started, and each command is stored as the
+ * session it came from, the milliseconds since the previous command and the
+ * command itself. Sessions are numbered in the order they send their first
+ * command.
+ *
+ * Passwords are replaced with an HMAC under a random key that only lives in
+ * memory for the run, so a replay of the log still logs in exactly when the
+ * original did (the same password always gives the same value within a log)
+ * without the log holding anything a password could be guessed back from.
+ * Session tokens are replaced the same way; they would have expired by the
+ * time of a replay anyway, so a resumed session replays as a failed resume.
+ *
+ * Commands are buffered and written out by a background thread every
+ * {@code flightapp.record.flush_ms} milliseconds (default 1000), and when the
+ * JVM exits.
+ */
+public class CommandRecorder {
+  static final int MAGIC = 0x46524543;
+
+  private static final String MASK_ALGORITHM = "HmacSHA256";
+
+  // Sorts in the order recordings started
+  private static final DateTimeFormatter STARTED = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmssSSS");
+
+  private static volatile CommandRecorder instance;
+  private static final Lock instanceLock = new ReentrantLock();
+
+  private final String path;
+  private final DataOutputStream out;
+  private final ThreadLocal<Mac> masks;
+  private final Lock lock = new ReentrantLock();
+  private final Map<Query, Integer> sessions = new WeakHashMap<>();
+  private int nextSession;
+  private long lastNanos = System.nanoTime();
+
+  private CommandRecorder(String basePath, long flushMillis) throws IOException {
+    long started = System.currentTimeMillis();
+    path = basePath + "." + STARTED.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(started), ZoneId.systemDefault()));
+    out = new DataOutputStream(new BufferedOutputStream(
+        Files.newOutputStream(Paths.get(path), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeLong(started);
+
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    masks = ThreadLocal.withInitial(() -> {
+      try {
+        Mac mac = Mac.getInstance(MASK_ALGORITHM);
+        mac.init(new SecretKeySpec(key, MASK_ALGORITHM));
+        return mac;
+      } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    System.err.println("Recording commands to " + path);
+
+    ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "command-recorder");
+      t.setDaemon(true);
+      return t;
+    });
+    flusher.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+  }
+
+  /**
+   * Records a command the session is about to run, if recording is enabled.
+   */
+  static void record(Query q, String[] tokens) {
+    CommandRecorder recorder = get();
+    if (recorder == null || tokens.length == 0) {
+      return;
+    }
+    try {
+      recorder.write(q, recorder.toCommand(tokens));
+    } catch (IOException e) {
+      System.err.println("Failed to record a command: " + e.getMessage());
+    }
+  }
+
+  private static CommandRecorder get() {
+    String path = Settings.get("flightapp.record", null);
+    if (path == null) {
+      return null;
+    }
+
+    CommandRecorder recorder = instance;
+    if (recorder == null) {
+      instanceLock.lock();
+      try {
+        recorder = instance;
+        if (recorder == null) {
+          recorder = new CommandRecorder(path, Settings.getLong("flightapp.record.flush_ms", 1000));
+          instance = recorder;
+        }
+      } catch (IOException e) {
+        System.err.println("Failed to open the command log: " + e.getMessage());
+      } finally {
+        instanceLock.unlock();
+      }
+    }
+    return recorder;
+  }
+
+  /**
+   * Returns the newest log recorded under the given {@code flightapp.record}
+   * path by an earlier run, or null if there is none.
+   */
+  static Path latestRecording(String basePath) throws IOException {
+    Path base = Paths.get(basePath).toAbsolutePath();
+    Pattern name = Pattern.compile(Pattern.quote(base.getFileName().toString()) + "\\.\\d{8}-\\d{9}");
+    CommandRecorder current = instance;
+    Path latest = null;
+    try (DirectoryStream<Path> logs = Files.newDirectoryStream(base.getParent())) {
+      for (Path log : logs) {
+        if (name.matcher(log.getFileName().toString()).matches()
+            && (current == null || !log.equals(Paths.get(current.path).toAbsolutePath()))
+            && (latest == null || log.getFileName().toString().compareTo(latest.getFileName().toString()) > 0)) {
+          latest = log;
+        }
+      }
+    }
+    return latest;
+  }
+
+  /**
+   * Rebuilds the command from its tokens, quoting any token with spaces and
+   * replacing passwords.
+   */
+  private String toCommand(String[] tokens) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < tokens.length; i++) {
+      String token = tokens[i];
+      if ((i == 2 && (tokens[0].equals("login") || tokens[0].equals("create")))
+          || (i == 1 && tokens[0].equals("resume"))) {
+        token = maskPassword(token);
+      }
+      if (i > 0) {
+        sb.append(' ');
+      }
+      if (token.isEmpty() || token.chars().anyMatch(Character::isWhitespace)) {
+        sb.append('"').append(token).append('"');
+      } else {
+        sb.append(token);
+      }
+    }
+    return sb.toString();
+  }
+
+  private String maskPassword(String password) {
+    byte[] mac = masks.get().doFinal(password.getBytes(StandardCharsets.UTF_8));
+    StringBuilder sb = new StringBuilder("pw");
+    for (int i = 0; i < 8; i++) {
+      sb.append(String.format("%02x", mac[i]));
+    }
+    return sb.toString();
+  }
+
+  private void write(Query q, String command) throws IOException {
+    lock.lock();
+    try {
+      Integer session = sessions.get(q);
+      if (session == null) {
+        session = nextSession++;
+        sessions.put(q, session);
+      }
+      long now = System.nanoTime();
+      out.writeInt(session);
+      out.writeInt((int) TimeUnit.NANOSECONDS.toMillis(now - lastNanos));
+      out.writeUTF(command);
+      // Carry the sub-millisecond remainder so offsets do not drift
+      lastNanos = now - (now - lastNanos) % 1_000_000;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void flush() {
+    lock.lock();
+    try {
+      out.flush();
+    } catch (IOException e) {
+      System.err.println("Failed to write the command log: " + e.getMessage());
+    } finally {
+      lock.unlock();
+    }
+  }
+}
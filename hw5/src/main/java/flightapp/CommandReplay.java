@@ -0,0 +1,240 @@
+package flightapp;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Replays a log written by {@link CommandRecorder} against this build and
+ * reports latency and throughput, optionally next to an earlier run's:
+ *
+ * {@code mvn compile exec:java -Dexec.mainClass=flightapp.CommandReplay -Dexec.args="<log> [speed] [baseline]"}
+ *
+ * Each recorded session gets its own {@link Query}, opened before the clock
+ * starts, and runs its commands in their recorded order. Commands are sent at
+ * their recorded times divided by {@code speed} (default 1, the original pace;
+ * 2 is twice as fast); a speed of 0 sends each command as soon as the previous
+ * one in its session returns. When pacing, a command's latency is measured
+ * from when it was due rather than when it was sent, so a run that falls
+ * behind shows up as latency instead of silently sending less load.
+ *
+ * The results are saved next to the log as {@code <log>.results}. Passing an
+ * earlier results file as {@code baseline} prints the change against it. The
+ * replay starts from whatever is in the database, so both runs should start
+ * from the same state; with {@code flightapp.replay.clear_tables=true} the
+ * custom tables are cleared first.
+ */
+public class CommandReplay {
+
+  /**
+   * One recorded command and when it was sent, in milliseconds from the start
+   * of the recording.
+   */
+  static class Recorded {
+    final int session;
+    final long offsetMillis;
+    final String command;
+
+    Recorded(int session, long offsetMillis, String command) {
+      this.session = session;
+      this.offsetMillis = offsetMillis;
+      this.command = command;
+    }
+  }
+
+  /**
+   * Reads the commands of a log in order. A command cut off at the end of the
+   * log is left out.
+   */
+  static List<Recorded> read(String path) throws IOException {
+    List<Recorded> commands = new ArrayList<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+      if (in.readInt() != CommandRecorder.MAGIC) {
+        throw new IOException(path + " is not a command log");
+      }
+      in.readLong();
+
+      long offset = 0;
+      while (true) {
+        int session;
+        try {
+          session = in.readInt();
+          offset += in.readInt();
+          commands.add(new Recorded(session, offset, in.readUTF()));
+        } catch (EOFException e) {
+          break;
+        }
+      }
+    }
+    return commands;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      System.err.println("Usage: CommandReplay <log> [speed] [baseline]");
+      System.exit(1);
+    }
+    double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+
+    Map<Integer, List<Recorded>> sessions = new TreeMap<>();
+    for (Recorded r : read(args[0])) {
+      sessions.computeIfAbsent(r.session, s -> new ArrayList<>()).add(r);
+    }
+
+    List<Query> queries = new ArrayList<>();
+    for (int i = 0; i < sessions.size(); i++) {
+      queries.add(new Query());
+    }
+    if (!queries.isEmpty() && Settings.getBoolean("flightapp.replay.clear_tables", false)) {
+      queries.get(0).clearTables();
+    }
+
+    // Every session needs its own thread, since paced sessions wait between
+    // commands
+    ExecutorService executor = SessionRunner.newExecutor(SessionRunner.Mode.fromSettings(),
+        Math.max(1, sessions.size()));
+    Map<String, List<Long>> latencies = new TreeMap<>();
+    Map<String, Integer> errors = new TreeMap<>();
+    List<Future<Map<String, List<Long>>>> futures = new ArrayList<>();
+
+    long start = System.nanoTime();
+    int q = 0;
+    for (List<Recorded> session : sessions.values()) {
+      Query query = queries.get(q++);
+      futures.add(executor.submit(() -> replaySession(query, session, start, speed)));
+    }
+    for (Future<Map<String, List<Long>>> f : futures) {
+      for (Map.Entry<String, List<Long>> e : f.get().entrySet()) {
+        latencies.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).addAll(e.getValue());
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    executor.shutdown();
+    for (Query query : queries) {
+      query.closeConnection();
+    }
+
+    // Failed commands are recorded under their own key so they can be counted
+    // without mixing their latencies into the successful ones
+    for (String key : new ArrayList<>(latencies.keySet())) {
+      if (key.endsWith("!")) {
+        errors.put(key.substring(0, key.length() - 1), latencies.remove(key).size());
+      }
+    }
+
+    Properties results = summarize(latencies, errors, elapsed);
+    try (Writer out = new FileWriter(args[0] + ".results")) {
+      results.store(out, "Replay of " + args[0] + " at speed " + speed);
+    }
+
+    Properties baseline = null;
+    if (args.length > 2) {
+      baseline = new Properties();
+      try (Reader in = new FileReader(args[2])) {
+        baseline.load(in);
+      }
+    }
+    print(results, baseline);
+  }
+
+  /**
+   * Runs one session's commands and returns their latencies in nanoseconds
+   * by command name. Commands whose response is an error are returned under
+   * their name followed by "!".
+   */
+  private static Map<String, List<Long>> replaySession(Query q, List<Recorded> commands, long start, double speed)
+      throws InterruptedException {
+    Map<String, List<Long>> latencies = new HashMap<>();
+    for (Recorded r : commands) {
+      long sent;
+      if (speed > 0) {
+        long due = start + (long) (TimeUnit.MILLISECONDS.toNanos(r.offsetMillis) / speed);
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+          TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        sent = due;
+      } else {
+        sent = System.nanoTime();
+      }
+
+      String response = FlightService.execute(q, r.command);
+      long latency = System.nanoTime() - sent;
+
+      String name = r.command.split(" ", 2)[0];
+      if (response.startsWith("Error") || response.startsWith("Failed")) {
+        name += "!";
+      }
+      latencies.computeIfAbsent(name, k -> new ArrayList<>()).add(latency);
+    }
+    return latencies;
+  }
+
+  private static Properties summarize(Map<String, List<Long>> latencies, Map<String, Integer> errors, long elapsed) {
+    Properties results = new Properties();
+    long total = 0;
+    Set<String> names = new TreeSet<>(latencies.keySet());
+    names.addAll(errors.keySet());
+    for (String name : names) {
+      List<Long> sorted = new ArrayList<>(latencies.getOrDefault(name, Collections.emptyList()));
+      Collections.sort(sorted);
+      int failed = errors.getOrDefault(name, 0);
+      total += sorted.size() + failed;
+      results.setProperty(name + ".count", String.valueOf(sorted.size()));
+      results.setProperty(name + ".errors", String.valueOf(failed));
+      if (!sorted.isEmpty()) {
+        results.setProperty(name + ".p50_ms", millis(sorted.get(sorted.size() / 2)));
+        results.setProperty(name + ".p99_ms", millis(sorted.get((int) (sorted.size() * 0.99))));
+        results.setProperty(name + ".max_ms", millis(sorted.get(sorted.size() - 1)));
+      }
+    }
+    results.setProperty("commands", String.valueOf(total));
+    results.setProperty("wall_ms", millis(elapsed));
+    results.setProperty("throughput", String.format(Locale.ROOT, "%.1f", total / (elapsed / 1e9)));
+    return results;
+  }
+
+  private static String millis(long nanos) {
+    return String.format(Locale.ROOT, "%.2f", nanos / 1e6);
+  }
+
+  private static void print(Properties results, Properties baseline) {
+    System.out.println(String.format("%s commands in %s ms, %s commands/s%s", results.getProperty("commands"),
+        results.getProperty("wall_ms"), results.getProperty("throughput"), delta(results, baseline, "throughput")));
+
+    Set<String> names = new TreeSet<>();
+    for (String key : results.stringPropertyNames()) {
+      if (key.endsWith(".count")) {
+        names.add(key.substring(0, key.length() - ".count".length()));
+      }
+    }
+    for (String name : names) {
+      StringBuilder sb = new StringBuilder(String.format("%-13s %6s ok %4s errors", name,
+          results.getProperty(name + ".count"), results.getProperty(name + ".errors")));
+      for (String stat : new String[] { "p50_ms", "p99_ms", "max_ms" }) {
+        String key = name + "." + stat;
+        if (results.getProperty(key) != null) {
+          sb.append(String.format("  %s %8s%s", stat.substring(0, 3), results.getProperty(key),
+              delta(results, baseline, key)));
+        }
+      }
+      System.out.println(sb);
+    }
+  }
+
+  /**
+   * Returns the change of a result against the baseline, or nothing if the
+   * baseline does not have it.
+   */
+  private static String delta(Properties results, Properties baseline, String key) {
+    if (baseline == null || baseline.getProperty(key) == null) {
+      return "";
+    }
+    double before = Double.parseDouble(baseline.getProperty(key));
+    double after = Double.parseDouble(results.getProperty(key));
+    if (before == 0) {
+      return "";
+    }
+    return String.format(" (%+.1f%%)", (after - before) / before * 100);
+  }
+}
@@ -0,0 +1,12 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.*;
+
+/**
+ * Opens new connections to the database a {@link Query} is connected to, for
+ * components that need a connection of their own.
+ */
+public interface ConnectionFactory {
+  Connection open() throws SQLException, IOException;
+}
@@ -0,0 +1,126 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Keeps a few connections open and primed ahead of demand, so that a new
+ * session neither waits for a connection to open nor for its first queries to
+ * compile. Each warm connection has the hot statements prepared and run once
+ * (see {@link Query#prime(StatementCache)}), which also leaves their plans in
+ * the server's plan cache for every other connection.
+ *
+ * Enabled with {@code flightapp.warmup.connections=N}, the number of warm
+ * connections to keep ready for each database. Connections are opened on a
+ * background thread, and taking one starts opening its replacement. A warm
+ * connection that has died while waiting, for example closed by the server
+ * after being idle, is closed and skipped.
+ */
+public class ConnectionWarmer {
+  // Seconds to wait for a warm connection to answer before dropping it
+  private static final int VALID_TIMEOUT = 5;
+
+  private static final ConcurrentHashMap<String, ConnectionWarmer> warmers = new ConcurrentHashMap<>();
+
+  private final ConnectionFactory factory;
+  private final int target;
+  private final BlockingQueue<StatementCache> ready = new LinkedBlockingQueue<>();
+  private final AtomicInteger opening = new AtomicInteger();
+  private final ExecutorService opener = Executors.newSingleThreadExecutor(r -> {
+    Thread t = new Thread(r, "connection-warmer");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private ConnectionWarmer(ConnectionFactory factory, int target) {
+    this.factory = factory;
+    this.target = target;
+  }
+
+  /**
+   * Starts warming connections for the given database in the background, if
+   * warm-up is enabled.
+   *
+   * @param key identifies the database the factory connects to
+   */
+  public static void start(String key, ConnectionFactory factory) {
+    ConnectionWarmer warmer = warmerFor(key, factory);
+    if (warmer != null) {
+      warmer.refill();
+    }
+  }
+
+  /**
+   * Returns a warm connection for the given database if one is ready, and
+   * otherwise opens a new one.
+   *
+   * @param key identifies the database the factory connects to
+   */
+  public static StatementCache take(String key, ConnectionFactory factory) throws SQLException, IOException {
+    ConnectionWarmer warmer = warmerFor(key, factory);
+    if (warmer == null) {
+      return new StatementCache(factory.open());
+    }
+
+    StatementCache warm = warmer.ready.poll();
+    while (warm != null && !valid(warm)) {
+      warm = warmer.ready.poll();
+    }
+    warmer.refill();
+    return warm != null ? warm : new StatementCache(factory.open());
+  }
+
+  /**
+   * Returns whether the warm connection still answers, closing it if not.
+   */
+  private static boolean valid(StatementCache warm) {
+    Connection conn = warm.connection();
+    try {
+      if (conn.isValid(VALID_TIMEOUT)) {
+        return true;
+      }
+    } catch (SQLException e) {
+      // Treated as dead
+    }
+    try {
+      conn.close();
+    } catch (SQLException e) {
+      System.err.println("Failed to close a dead warm connection: " + e.getMessage());
+    }
+    return false;
+  }
+
+  private static ConnectionWarmer warmerFor(String key, ConnectionFactory factory) {
+    int target = Settings.getInt("flightapp.warmup.connections", 0);
+    if (target <= 0) {
+      return null;
+    }
+    return warmers.computeIfAbsent(key, k -> new ConnectionWarmer(factory, target));
+  }
+
+  private void refill() {
+    while (true) {
+      int pending = opening.get();
+      if (ready.size() + pending >= target) {
+        return;
+      }
+      if (opening.compareAndSet(pending, pending + 1)) {
+        opener.execute(this::openOne);
+      }
+    }
+  }
+
+  private void openOne() {
+    try {
+      StatementCache statements = new StatementCache(factory.open());
+      Query.prime(statements);
+      ready.add(statements);
+    } catch (SQLException | IOException e) {
+      System.err.println("Failed to warm up a connection: " + e.getMessage());
+    } finally {
+      opening.decrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package flightapp;
+
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events for commands and their database round trips.
+ *
+ * With {@code flightapp.jfr=true}, every command run through
+ * {@link FlightService#execute(Query, String)} emits a {@code flightapp.Command}
+ * event with how many round trips and retries it took, and every statement
+ * execution emits a {@code flightapp.RoundTrip} event tagged with its command
+ * (connections are wrapped as for {@link StatementTracer}). The events are
+ * only written while a recording with them enabled is running, e.g.
+ *
+ * {@code java -XX:StartFlightRecording:filename=flights.jfr,settings=profile ...}
+ *
+ * and sit on the same timeline as the JVM's GC, allocation and lock events.
+ */
+public class FlightEvents {
+
+  @Name("flightapp.Command")
+  @Label("Command")
+  @Category("Flight App")
+  @Description("A command run by a session")
+  static class CommandEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Database Calls")
+    int databaseCalls;
+
+    @Label("Retries")
+    int retries;
+  }
+
+  @Name("flightapp.RoundTrip")
+  @Label("Database Round Trip")
+  @Category("Flight App")
+  @Description("One statement execution, until its rows have been read")
+  static class RoundTripEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Statement")
+    String statement;
+
+    @Label("Rows")
+    long rows;
+  }
+
+  // The command event of the command this thread is running
+  private static final ThreadLocal<CommandEvent> current = new ThreadLocal<>();
+
+  public static boolean enabled() {
+    return Settings.getBoolean("flightapp.jfr", false);
+  }
+
+  /**
+   * Starts timing a command on this thread, if enabled.
+   */
+  static void beginCommand(String command) {
+    if (!enabled()) {
+      return;
+    }
+    CommandEvent event = new CommandEvent();
+    event.command = command;
+    event.begin();
+    current.set(event);
+  }
+
+  static void endCommand() {
+    CommandEvent event = current.get();
+    if (event != null) {
+      current.remove();
+      event.commit();
+    }
+  }
+
+  /**
+   * Counts a database round trip against the command running on this thread.
+   */
+  static void databaseCall() {
+    CommandEvent event = current.get();
+    if (event != null) {
+      event.databaseCalls++;
+    }
+  }
+
+  /**
+   * Counts a retry (after a deadlock or a failed replica read) against the
+   * command running on this thread.
+   */
+  static void retry() {
+    CommandEvent event = current.get();
+    if (event != null) {
+      event.retries++;
+    }
+  }
+
+  /**
+   * Starts a round trip event, or returns null if disabled.
+   */
+  static RoundTripEvent beginRoundTrip(String command, String statement) {
+    if (!enabled()) {
+      return null;
+    }
+    RoundTripEvent event = new RoundTripEvent();
+    event.command = command;
+    event.statement = statement;
+    event.begin();
+    return event;
+  }
+}
@@ -2,6 +2,7 @@ package flightapp;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 import java.sql.*;
 
@@ -12,6 +13,33 @@ public class FlightService {
    */
   public static String execute(Query q, String command) {
     String[] tokens = tokenize(command.trim());
+    CommandRecorder.record(q, tokens);
+    if (tokens.length == 0) {
+      return run(q, tokens);
+    }
+
+    StatementTracer.beginCommand(tokens[0]);
+    FlightEvents.beginCommand(tokens[0]);
+    try {
+      AdmissionController.Permit permit = AdmissionController.admit(q, tokens[0]);
+      if (!permit.admitted()) {
+        return permit.rejection();
+      }
+      try {
+        return run(q, tokens);
+      } finally {
+        permit.release();
+      }
+    } finally {
+      FlightEvents.endCommand();
+      StatementTracer.endCommand();
+    }
+  }
+
+  /**
+   * Run an already admitted command
+   */
+  private static String run(Query q, String[] tokens) {
     String response;
 
     // empty input
@@ -30,6 +58,25 @@ public class FlightService {
       }
     }
 
+    // session token of the logged in user
+    else if (tokens[0].equals("token")) {
+      response = q.transaction_token();
+    }
+
+    // resume a session with a token
+    else if (tokens[0].equals("resume")) {
+      if (tokens.length == 2) {
+        response = q.transaction_resume(tokens[1]);
+      } else {
+        response = "Error: Please provide a session token";
+      }
+    }
+
+    // revoke the logged in user's session tokens
+    else if (tokens[0].equals("revoke")) {
+      response = q.transaction_revoke();
+    }
+
     // create
     else if (tokens[0].equals("create")) {
       if (tokens.length == 4) {
@@ -44,16 +91,45 @@ public class FlightService {
 
     // search
     else if (tokens[0].equals("search")) {
-      if (tokens.length == 6) {
+      if (tokens.length == 2 && tokens[1].equals("next")) {
+        response = q.transaction_searchNext();
+      } else if (tokens.length >= 6) {
         String originCity = tokens[1];
         String destinationCity = tokens[2];
         boolean direct = tokens[3].equals("1");
-        try {
-          int day = Integer.valueOf(tokens[4]);
-          int count = Integer.valueOf(tokens[5]);
-          response = q.transaction_search(originCity, destinationCity, direct, day, count);
-        } catch (NumberFormatException e) {
-          response = "Failed to parse integer";
+
+        // Options follow the required parameters in any order
+        boolean availableOnly = false;
+        ItineraryRanker.Ranking ranking = ItineraryRanker.Ranking.TIME;
+        String unknownOption = null;
+        for (int i = 6; i < tokens.length && unknownOption == null; i++) {
+          if (tokens[i].equals("available")) {
+            availableOnly = true;
+          } else if (ItineraryRanker.Ranking.fromOption(tokens[i]) != null) {
+            ranking = ItineraryRanker.Ranking.fromOption(tokens[i]);
+          } else {
+            unknownOption = tokens[i];
+          }
+        }
+
+        if (unknownOption != null) {
+          response = "Error: Unknown search option " + unknownOption;
+        } else {
+          try {
+            // The day may also be a range such as 1-7
+            String[] days = tokens[4].split("-", 2);
+            int firstDay = Integer.valueOf(days[0]);
+            int lastDay = days.length == 2 ? Integer.valueOf(days[1]) : firstDay;
+            int count = Integer.valueOf(tokens[5]);
+            if (lastDay < firstDay) {
+              response = "Error: The last day of the range comes before the first";
+            } else {
+              response = q.transaction_search(originCity, destinationCity, direct, firstDay, lastDay, count,
+                  availableOnly, ranking);
+            }
+          } catch (NumberFormatException e) {
+            response = "Failed to parse integer";
+          }
         }
       } else {
         response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
@@ -117,8 +193,24 @@ public class FlightService {
    */
   public static void main(String[] args) throws IOException, SQLException {
     /* prepare the database connection stuff */
+    CacheWarmer.start(Query::openConnectionFromDbConn);
     Query q = new Query();
-    menu(q);
+    CacheWarmer.awaitReady();
+
+    // The REPL is one session, run on a session thread like any other
+    ExecutorService executor = SessionRunner.newExecutor(SessionRunner.Mode.fromSettings(), 1);
+    try {
+      executor.submit(() -> {
+        menu(q);
+        return null;
+      }).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdown();
+    }
     q.closeConnection();
   }
 
@@ -136,7 +228,11 @@ public class FlightService {
       System.out.println(" *** Please enter one of the following commands *** ");
       System.out.println("> create <username> <password> <initial amount>");
       System.out.println("> login <username> <password>");
-      System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+      System.out.println("> token");
+      System.out.println("> resume <session token>");
+      System.out.println("> revoke");
+      System.out.println("> search <origin city> <destination city> <direct> <day of the month or first-last> <num itineraries> [available] [time|price|value]");
+      System.out.println("> search next  (by time with available: itineraries that free up before the last one listed are not shown)");
       System.out.println("> book <itinerary id>");
       System.out.println("> pay <reservation id>");
       System.out.println("> reservations");
@@ -160,7 +256,7 @@ public class FlightService {
   /**
    * Tokenize a string into a string array
    */
-  private static String[] tokenize(String command) {
+  static String[] tokenize(String command) {
     String regex = "\"([^\"]*)\"|(\\S+)";
     Matcher m = Pattern.compile(regex).matcher(command);
     List<String> tokens = new ArrayList<>();
@@ -0,0 +1,143 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * In-memory bitmap of sold-out flights, indexed by fid and shared by every
+ * session in this JVM. Searches in available-seats mode use it to skip
+ * itineraries that could not be booked, without any extra queries.
+ *
+ * The bitmap is read from the database the first time it is needed and again
+ * every {@code flightapp.full_flights.refresh_ms} milliseconds (default one
+ * minute), which picks up bookings and cancellations made by other processes.
+ * In between, book marks flights that it fills (or that turn out to be full)
+ * and cancel clears the flights it frees.
+ */
+public class FullFlights {
+  private static final String GET_FULL_FLIGHTS = "SELECT F.fid FROM FLIGHTS AS F WHERE F.capacity <= 0 "
+      + "OR F.capacity <= (SELECT Count(*) FROM RESERVATIONS AS R WHERE R.cancelled = 0 AND (R.flight1 = F.fid OR R.flight2 = F.fid))";
+
+  // With several shards, seats are counted on the home database (see ShardRouter)
+  private static final String GET_FULL_FLIGHTS_SHARDED = "SELECT F.fid FROM FLIGHTS AS F WHERE F.capacity <= 0 "
+      + "OR F.capacity <= (SELECT Count(*) FROM BOOKED_SEATS AS S WHERE S.cancelled = 0 AND (S.flight1 = F.fid OR S.flight2 = F.fid))";
+
+  private static final ReadWriteLock lock = new ReentrantReadWriteLock();
+  // Held by the one caller reading the bitmap from the database
+  private static final Lock reloadLock = new ReentrantLock();
+  private static BitSet full = new BitSet();
+  private static int count = 0;
+  private static volatile long loadedAt = 0;
+
+  /**
+   * Reads the bitmap from the database if it has never been read or is older
+   * than the refresh interval. Only one caller reads it at a time; while it
+   * does, the others keep using the current bitmap, and only wait if there is
+   * none yet.
+   */
+  public static void ensureLoaded(StatementCache statements) throws SQLException {
+    long refreshMillis = Settings.getLong("flightapp.full_flights.refresh_ms", 60000);
+    if (!stale(refreshMillis)) {
+      return;
+    }
+
+    if (loadedAt != 0) {
+      if (!reloadLock.tryLock()) {
+        return;
+      }
+    } else {
+      reloadLock.lock();
+    }
+    try {
+      // Another caller may have read it while this one waited
+      if (!stale(refreshMillis)) {
+        return;
+      }
+
+      BitSet loaded = new BitSet();
+      try (ResultSet rs = statements.prepare(ShardRouter.sharded() ? GET_FULL_FLIGHTS_SHARDED : GET_FULL_FLIGHTS)
+          .executeQuery()) {
+        while (rs.next()) {
+          loaded.set(rs.getInt("fid"));
+        }
+      }
+
+      lock.writeLock().lock();
+      try {
+        full = loaded;
+        count = loaded.cardinality();
+        loadedAt = System.currentTimeMillis();
+      } finally {
+        lock.writeLock().unlock();
+      }
+    } finally {
+      reloadLock.unlock();
+    }
+  }
+
+  private static boolean stale(long refreshMillis) {
+    long at = loadedAt;
+    return at == 0 || System.currentTimeMillis() - at >= refreshMillis;
+  }
+
+  public static boolean isFull(int fid) {
+    lock.readLock().lock();
+    try {
+      return full.get(fid);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Number of sold-out flights.
+   */
+  public static int count() {
+    lock.readLock().lock();
+    try {
+      return count;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public static void markFull(int fid) {
+    lock.writeLock().lock();
+    try {
+      if (!full.get(fid)) {
+        full.set(fid);
+        count++;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public static void markAvailable(int fid) {
+    lock.writeLock().lock();
+    try {
+      if (full.get(fid)) {
+        full.clear(fid);
+        count--;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Forgets the bitmap so it is read again on next use, used when the tables
+   * are cleared.
+   */
+  public static void clear() {
+    lock.writeLock().lock();
+    try {
+      full = new BitSet();
+      count = 0;
+      loadedAt = 0;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package flightapp;
+
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Ranks itineraries by price or by a weighted mix of time and price.
+ *
+ * Search by time can let the database do the ordering, but the cheapest
+ * one-stop itineraries could pair any two legs. Instead of scoring every
+ * pair, legs are pruned first: a leg that at least K other legs into (or out
+ * of) the same connecting city on the same day beat on both time and price
+ * can never be part of a top-K itinerary, since swapping in any of those legs
+ * gives an itinerary that ranks ahead of it. Only the legs left (each city's
+ * K-skyband) are paired, so the work grows with K rather than with all pairs.
+ */
+public class ItineraryRanker {
+
+  /**
+   * How a search orders its itineraries.
+   */
+  public enum Ranking {
+    TIME, PRICE, VALUE;
+
+    /**
+     * Returns the ranking named by a search option, or null if it is not one.
+     */
+    static Ranking fromOption(String option) {
+      switch (option) {
+        case "time":
+          return TIME;
+        case "price":
+          return PRICE;
+        case "value":
+          return VALUE;
+        default:
+          return null;
+      }
+    }
+  }
+
+  private final Comparator<List<Query.Flight>> order;
+
+  /**
+   * @param ranking PRICE or VALUE; VALUE scores an itinerary as its minutes
+   *                plus {@code flightapp.search.price_weight} (default 1)
+   *                minutes per dollar
+   */
+  public ItineraryRanker(Ranking ranking) {
+    Comparator<List<Query.Flight>> byScore;
+    if (ranking == Ranking.PRICE) {
+      byScore = Comparator.comparingLong(ItineraryRanker::price);
+    } else if (ranking == Ranking.VALUE) {
+      double weight = Math.max(1e-6, Settings.getDouble("flightapp.search.price_weight", 1));
+      byScore = Comparator.comparingDouble(it -> time(it) + weight * price(it));
+    } else {
+      throw new IllegalArgumentException("Ranking by time is done by the search queries");
+    }
+    order = byScore.thenComparingLong(ItineraryRanker::time).thenComparingLong(ItineraryRanker::price)
+        .thenComparingInt(it -> it.get(0).fid).thenComparingInt(it -> it.size() == 2 ? it.get(1).fid : 0);
+  }
+
+  /**
+   * Returns the best {@code k} itineraries from the origin to the destination
+   * that can be built from the given flights, best first. Direct flights and
+   * one-stop itineraries connecting on the same day are ranked together.
+   *
+   * @param legs     flights leaving the origin or arriving at the destination
+   * @param excluded flights that may not be used, e.g. sold-out ones
+   */
+  public List<List<Query.Flight>> rank(List<Query.Flight> legs, String originCity, String destinationCity,
+      boolean directOnly, int k, Predicate<Query.Flight> excluded) {
+    List<List<Query.Flight>> candidates = new ArrayList<>();
+
+    // Legs by day and connecting city; cities compare case-insensitively, as
+    // they do in the database
+    Map<String, List<Query.Flight>> firstLegs = new HashMap<>();
+    Map<String, List<Query.Flight>> secondLegs = new HashMap<>();
+    for (Query.Flight f : legs) {
+      if (excluded.test(f)) {
+        continue;
+      }
+      boolean fromOrigin = f.originCity.equalsIgnoreCase(originCity);
+      boolean toDestination = f.destCity.equalsIgnoreCase(destinationCity);
+      if (fromOrigin && toDestination) {
+        candidates.add(Collections.singletonList(f));
+      } else if (!directOnly && fromOrigin) {
+        firstLegs.computeIfAbsent(f.dayOfMonth + "/" + f.destCity.toLowerCase(), x -> new ArrayList<>()).add(f);
+      } else if (!directOnly && toDestination) {
+        secondLegs.computeIfAbsent(f.dayOfMonth + "/" + f.originCity.toLowerCase(), x -> new ArrayList<>()).add(f);
+      }
+    }
+
+    for (Map.Entry<String, List<Query.Flight>> connection : firstLegs.entrySet()) {
+      List<Query.Flight> seconds = secondLegs.get(connection.getKey());
+      if (seconds == null) {
+        continue;
+      }
+      List<Query.Flight> secondBand = skyband(seconds, k);
+      for (Query.Flight first : skyband(connection.getValue(), k)) {
+        for (Query.Flight second : secondBand) {
+          candidates.add(Arrays.asList(first, second));
+        }
+      }
+    }
+
+    candidates.sort(order);
+    return candidates.subList(0, Math.min(k, candidates.size()));
+  }
+
+  /**
+   * Returns the flights that fewer than {@code k} others beat on both time and
+   * price (at least as good on both and better on one).
+   */
+  static List<Query.Flight> skyband(List<Query.Flight> flights, int k) {
+    if (flights.size() <= k) {
+      return flights;
+    }
+
+    List<Query.Flight> sorted = new ArrayList<>(flights);
+    sorted.sort(Comparator.<Query.Flight>comparingInt(f -> f.time).thenComparingInt(f -> f.price));
+    List<Query.Flight> band = new ArrayList<>();
+    for (int i = 0; i < sorted.size(); i++) {
+      Query.Flight f = sorted.get(i);
+      int dominatedBy = 0;
+      for (int j = 0; j < i && dominatedBy < k; j++) {
+        Query.Flight other = sorted.get(j);
+        if (other.price <= f.price && (other.time < f.time || other.price < f.price)) {
+          dominatedBy++;
+        }
+      }
+      if (dominatedBy < k) {
+        band.add(f);
+      }
+    }
+    return band;
+  }
+
+  private static long time(List<Query.Flight> itinerary) {
+    long time = 0;
+    for (Query.Flight f : itinerary) {
+      time += f.time;
+    }
+    return time;
+  }
+
+  private static long price(List<Query.Flight> itinerary) {
+    long price = 0;
+    for (Query.Flight f : itinerary) {
+      price += f.price;
+    }
+    return price;
+  }
+}
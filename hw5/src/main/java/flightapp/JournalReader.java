@@ -0,0 +1,97 @@
+package flightapp;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Reads a {@link TransactionJournal}.
+ *
+ * {@code mvn compile exec:java -Dexec.mainClass=flightapp.JournalReader -Dexec.args="<journal>"}
+ * prints every record in order. With {@code state} after the path it instead
+ * replays the records and prints the state they leave: each user's last known
+ * balance and every reservation with whether it is paid or cancelled.
+ */
+public class JournalReader {
+
+  /**
+   * A reservation as rebuilt from the journal.
+   */
+  static class ReservationState {
+    final String username;
+    final int fid1;
+    final int fid2;
+    boolean paid;
+    boolean cancelled;
+
+    ReservationState(String username, int fid1, int fid2) {
+      this.username = username;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+    }
+  }
+
+  /**
+   * Returns every complete record of the journal at the given path, in order.
+   */
+  public static List<TransactionJournal.Entry> read(Path path) throws IOException {
+    List<TransactionJournal.Entry> entries = new ArrayList<>();
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      TransactionJournal.scan(channel, entries::add);
+    }
+    return entries;
+  }
+
+  /**
+   * Replays the records into reservations by id, and fills in each user's
+   * balance after their last payment or cancellation.
+   */
+  static Map<Integer, ReservationState> replay(List<TransactionJournal.Entry> entries, Map<String, Integer> balances) {
+    Map<Integer, ReservationState> reservations = new TreeMap<>();
+    for (TransactionJournal.Entry e : entries) {
+      switch (e.type) {
+        case TransactionJournal.BOOK:
+          reservations.put(e.reservationId, new ReservationState(e.username, e.fid1, e.fid2));
+          break;
+        case TransactionJournal.PAY:
+          reservations.computeIfAbsent(e.reservationId, k -> new ReservationState(e.username, 0, 0)).paid = true;
+          balances.put(e.username, e.balance);
+          break;
+        case TransactionJournal.CANCEL:
+          reservations.computeIfAbsent(e.reservationId, k -> new ReservationState(e.username, 0, 0)).cancelled = true;
+          balances.put(e.username, e.balance);
+          break;
+        default:
+          break;
+      }
+    }
+    return reservations;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.err.println("Usage: JournalReader <journal> [state]");
+      System.exit(1);
+    }
+
+    List<TransactionJournal.Entry> entries = read(Paths.get(args[0]));
+    if (args.length < 2 || !args[1].equals("state")) {
+      for (TransactionJournal.Entry e : entries) {
+        System.out.println(e);
+      }
+      return;
+    }
+
+    Map<String, Integer> balances = new TreeMap<>();
+    Map<Integer, ReservationState> reservations = replay(entries, balances);
+    for (Map.Entry<String, Integer> b : balances.entrySet()) {
+      System.out.println("User " + b.getKey() + " balance: " + b.getValue());
+    }
+    for (Map.Entry<Integer, ReservationState> r : reservations.entrySet()) {
+      ReservationState state = r.getValue();
+      System.out.println("Reservation " + r.getKey() + " user: " + state.username + " flights: " + state.fid1
+          + (state.fid2 != 0 ? " " + state.fid2 : "") + " paid: " + state.paid + " cancelled: " + state.cancelled);
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Maintains ONE_STOP_CONNECTIONS, the one-stop itineraries of every day
+ * computed ahead of time, so that an indirect search is an index seek with TOP
+ * instead of a self-join of FLIGHTS.
+ *
+ * Only the shortest {@code flightapp.one_stop.max_per_route} (default 100)
+ * connections of each (day, origin, destination) are kept, ranked the same way
+ * search orders them. A search on a route that reached that limit, or that
+ * covers a day which has not been built yet or whose flights changed since,
+ * falls back to the join (see {@link #isComplete}).
+ *
+ * A refresh compares a checksum of each day's flights with the one stored in
+ * ONE_STOP_CHECKSUMS and rebuilds only the days that changed, each in its own
+ * transaction. Searches use the table when {@code flightapp.one_stop=true}; with
+ * {@code flightapp.one_stop.refresh_ms} set, sessions also refresh it in the
+ * background. Running this class refreshes it once:
+ *
+ * {@code mvn compile exec:java -Dexec.mainClass=flightapp.OneStopConnections}
+ */
+public class OneStopConnections {
+  private static final String DAY_CHECKSUM =
+      "CHECKSUM_AGG(BINARY_CHECKSUM(fid, origin_city, dest_city, actual_time, canceled))";
+
+  private static final String GET_DAY_CHECKSUMS = "SELECT day_of_month, " + DAY_CHECKSUM + " AS checksum "
+      + "FROM FLIGHTS GROUP BY day_of_month";
+
+  private static final String GET_BUILT_DAYS = "SELECT day_of_month, checksum, max_per_route FROM ONE_STOP_CHECKSUMS";
+
+  private static final String REBUILD_DAY = "SET NOCOUNT ON; SET XACT_ABORT ON; "
+      + "DECLARE @day INT = ?, @checksum INT = ?, @k INT = ?; "
+      + "BEGIN TRANSACTION; "
+      + "DELETE FROM ONE_STOP_CONNECTIONS WHERE day_of_month = @day; "
+      + "INSERT INTO ONE_STOP_CONNECTIONS (day_of_month, origin_city, dest_city, total_time, fid1, fid2, route_rank) "
+      + "SELECT day_of_month, origin_city, dest_city, total_time, fid1, fid2, route_rank FROM "
+      + "(SELECT F1.day_of_month, F1.origin_city, F2.dest_city, F1.actual_time + F2.actual_time AS total_time, "
+      + "F1.fid AS fid1, F2.fid AS fid2, ROW_NUMBER() OVER (PARTITION BY F1.origin_city, F2.dest_city "
+      + "ORDER BY F1.actual_time + F2.actual_time ASC, F1.fid ASC, F2.fid ASC) AS route_rank "
+      + "FROM FLIGHTS AS F1, FLIGHTS AS F2 WHERE F1.day_of_month = @day AND F2.day_of_month = @day "
+      + "AND F1.dest_city = F2.origin_city AND F1.canceled = 0 AND F2.canceled = 0) AS C "
+      + "WHERE route_rank <= @k; "
+      + "DELETE FROM ONE_STOP_CHECKSUMS WHERE day_of_month = @day; "
+      + "INSERT INTO ONE_STOP_CHECKSUMS (day_of_month, checksum, max_per_route) VALUES (@day, @checksum, @k); "
+      + "COMMIT TRANSACTION;";
+
+  // Complete if every day of the range with flights is built with the current
+  // limit from the flights as they are now, and no day of the route reached the
+  // limit, so nothing was left out
+  private static final String IS_COMPLETE = "SELECT CASE WHEN NOT EXISTS "
+      + "(SELECT * FROM (SELECT day_of_month, " + DAY_CHECKSUM + " AS checksum FROM FLIGHTS "
+      + "WHERE day_of_month BETWEEN ? AND ? GROUP BY day_of_month) AS F "
+      + "LEFT OUTER JOIN ONE_STOP_CHECKSUMS AS C ON C.day_of_month = F.day_of_month AND C.max_per_route = ? "
+      + "WHERE C.checksum IS NULL OR C.checksum <> F.checksum) "
+      + "AND NOT EXISTS (SELECT * FROM ONE_STOP_CONNECTIONS WHERE origin_city = ? AND dest_city = ? "
+      + "AND day_of_month BETWEEN ? AND ? AND route_rank >= ?) THEN 1 ELSE 0 END AS complete";
+
+  private static volatile ScheduledExecutorService refresher;
+  private static final Lock refresherLock = new ReentrantLock();
+
+  public static boolean enabled() {
+    return Settings.getBoolean("flightapp.one_stop", false);
+  }
+
+  private static int maxPerRoute() {
+    return Settings.getInt("flightapp.one_stop.max_per_route", 100);
+  }
+
+  /**
+   * Starts refreshing the table in the background with connections from the
+   * given factory, if enabled and not already started.
+   */
+  public static void start(ConnectionFactory factory) {
+    long refreshMillis = Settings.getLong("flightapp.one_stop.refresh_ms", 0);
+    if (!enabled() || refreshMillis <= 0 || refresher != null) {
+      return;
+    }
+
+    refresherLock.lock();
+    try {
+      if (refresher != null) {
+        return;
+      }
+      refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "one-stop-refresher");
+        t.setDaemon(true);
+        return t;
+      });
+      refresher.scheduleWithFixedDelay(() -> {
+        try (Connection conn = factory.open()) {
+          refresh(conn);
+        } catch (SQLException | IOException e) {
+          System.err.println("Failed to refresh one-stop connections: " + e.getMessage());
+        }
+      }, 0, refreshMillis, TimeUnit.MILLISECONDS);
+    } finally {
+      refresherLock.unlock();
+    }
+  }
+
+  /**
+   * Rebuilds the days whose flights changed since they were last built.
+   *
+   * @return the number of days rebuilt
+   */
+  public static int refresh(Connection conn) throws SQLException {
+    int k = maxPerRoute();
+
+    Map<Integer, Integer> built = new HashMap<>();
+    try (Statement statement = conn.createStatement(); ResultSet rs = statement.executeQuery(GET_BUILT_DAYS)) {
+      while (rs.next()) {
+        if (rs.getInt("max_per_route") == k) {
+          built.put(rs.getInt("day_of_month"), rs.getInt("checksum"));
+        }
+      }
+    }
+
+    Map<Integer, Integer> stale = new TreeMap<>();
+    try (Statement statement = conn.createStatement(); ResultSet rs = statement.executeQuery(GET_DAY_CHECKSUMS)) {
+      while (rs.next()) {
+        int day = rs.getInt("day_of_month");
+        int checksum = rs.getInt("checksum");
+        if (!Integer.valueOf(checksum).equals(built.get(day))) {
+          stale.put(day, checksum);
+        }
+      }
+    }
+
+    try (PreparedStatement rebuildDay = conn.prepareStatement(REBUILD_DAY)) {
+      for (Map.Entry<Integer, Integer> day : stale.entrySet()) {
+        rebuildDay.setInt(1, day.getKey());
+        rebuildDay.setInt(2, day.getValue());
+        rebuildDay.setInt(3, k);
+        rebuildDay.execute();
+      }
+    }
+    return stale.size();
+  }
+
+  /**
+   * Whether the table holds every one-stop itinerary of the route on the given
+   * days as the flights are now, so that its rows can be trusted both when a
+   * page fills and when it runs out. A day that was never built, or whose
+   * flights changed since it was built, makes the range incomplete.
+   */
+  public static boolean isComplete(StatementCache statements, String originCity, String destinationCity,
+      int firstDay, int lastDay) throws SQLException {
+    int k = maxPerRoute();
+    PreparedStatement isCompleteStatement = statements.prepare(IS_COMPLETE);
+    isCompleteStatement.clearParameters();
+    isCompleteStatement.setInt(1, firstDay);
+    isCompleteStatement.setInt(2, lastDay);
+    isCompleteStatement.setInt(3, k);
+    isCompleteStatement.setString(4, originCity);
+    isCompleteStatement.setString(5, destinationCity);
+    isCompleteStatement.setInt(6, firstDay);
+    isCompleteStatement.setInt(7, lastDay);
+    isCompleteStatement.setInt(8, k);
+    try (ResultSet rs = isCompleteStatement.executeQuery()) {
+      rs.next();
+      return rs.getInt("complete") == 1;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    try (Connection conn = Query.openConnectionFromDbConn()) {
+      System.out.println("Rebuilt " + refresh(conn) + " day(s) of one-stop connections");
+    }
+  }
+}
@@ -3,6 +3,8 @@ package flightapp;
 import java.io.*;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.*;
 import java.security.*;
 import java.security.spec.*;
 import javax.crypto.*;
@@ -15,83 +17,248 @@ public class Query {
   // DB Connection
   private Connection conn;
 
+  // Statements prepared on conn so far
+  private final StatementCache statements;
+
+  // Opens further connections to the same database
+  private final ConnectionFactory connectionFactory;
+
+  // Statements on each shard's connection, opened when first needed; shard 0
+  // is the home database, statements
+  private final StatementCache[] shardStatements = new StatementCache[ShardRouter.shardCount()];
+
+  // Statements on the read replica, opened when first needed
+  private StatementCache replicaStatements;
+
+  // What the current search reads flights with: the replica's statements when
+  // it is current, otherwise statements
+  private StatementCache readStatements;
+
+  private static final AtomicLong nextSessionId = new AtomicLong();
+
+  // Identifies this session among every session opened in the JVM
+  private final long sessionId = nextSessionId.incrementAndGet();
+
   // Password hashing parameter constants
   private static final int HASH_STRENGTH = 65536;
   private static final int KEY_LENGTH = 128;
 
-  // Canned queries
+  // Most requests a batch search answers from one query
+  private static final int MAX_BATCH_GROUP = 1000;
+
+  // Times a booking is retried after a deadlock before it fails
+  private static final int MAX_DEADLOCK_RETRIES = 3;
+
+  // Canned queries, each prepared the first time a session runs it
   private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
-  private PreparedStatement checkFlightCapacityStatement;
 
   // For check dangling
   private static final String TRANCOUNT_SQL = "SELECT @@TRANCOUNT AS tran_count";
-  private PreparedStatement tranCountStatement;
 
   private static final String CLEAR_USERS_TABLE = "DELETE FROM USERS";
-  private PreparedStatement clearUsersTableStatement;
 
   private static final String CLEAR_RESERVATOINS_TABLE = "DELETE FROM RESERVATIONS";
-  private PreparedStatement clearReservationsTableStatement;
+
+  private static final String CLEAR_RESERVATIONS_HISTORY_TABLE = "DELETE FROM RESERVATIONS_HISTORY";
+
+  private static final String CLEAR_BOOKED_SEATS_TABLE = "DELETE FROM BOOKED_SEATS";
 
   private static final String CREATE_USER = "INSERT INTO USERS (username, password, salt, balance) VALUES (?, ?, ?, ?)";
-  private PreparedStatement createUserStatement;
 
   private static final String FIND_USER = "SELECT * FROM USERS WHERE username = ?";
-  private PreparedStatement findUserStatement;
+
+  private static final String REVOKE_TOKENS = "UPDATE USERS SET token_version = token_version + 1 "
+      + "OUTPUT inserted.token_version WHERE username = ?";
 
   private static final String GET_DIRECT_FLIGHTS = "SELECT TOP (?) fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price "
-      + "FROM FLIGHTS WHERE origin_city = ? AND dest_city = ? AND canceled = 0 AND day_of_month = ? ORDER BY actual_time ASC, fid ASC";
-  private PreparedStatement getDirectFlightsStatement;
+      + "FROM FLIGHTS WHERE origin_city = ? AND dest_city = ? AND canceled = 0 AND day_of_month BETWEEN ? AND ? ORDER BY actual_time ASC, fid ASC";
 
-  private static final String GET_INDIRECT_FLIGHTS = "SELECT TOP (?) F1.fid AS F1_fid, F1.day_of_month AS F1_day_of_month, F1.carrier_id AS F1_carrier_id, F1.flight_num AS F1_flight_num, "
+  private static final String INDIRECT_FLIGHT_COLUMNS = "F1.fid AS F1_fid, F1.day_of_month AS F1_day_of_month, F1.carrier_id AS F1_carrier_id, F1.flight_num AS F1_flight_num, "
       + "F1.origin_city AS F1_origin_city, F1.dest_city AS F1_dest_city, F1.actual_time AS F1_actual_time, F1.capacity AS F1_capacity, F1.price AS F1_price, "
       + "F2.fid AS F2_fid, F2.day_of_month AS F2_day_of_month, F2.carrier_id AS F2_carrier_id, F2.flight_num AS F2_flight_num, F2.origin_city AS F2_origin_city, F2.dest_city AS F2_dest_city, "
-      + "F2.actual_time AS F2_actual_time, F2.capacity As F2_capacity, F2.price AS F2_price "
+      + "F2.actual_time AS F2_actual_time, F2.capacity As F2_capacity, F2.price AS F2_price ";
+
+  private static final String GET_INDIRECT_FLIGHTS = "SELECT TOP (?) " + INDIRECT_FLIGHT_COLUMNS
       + "FROM FLIGHTS AS F1, FLIGHTS AS F2 "
       + "WHERE F1.origin_city = ? AND F2.dest_city = ? AND F1.dest_city = F2.origin_city AND F2.origin_city = F1.dest_city AND F1.canceled = 0"
-      + "AND F1.day_of_month = ? AND F2.day_of_month = ? AND F2.canceled = 0 ORDER BY F1.actual_time + F2.actual_time ASC, F1.fid ASC, F2.fid ASC";
-  private PreparedStatement getIndirectFlightsStatement;
-
-  private static final String GET_RESERVATIONS = "SELECT * FROM RESERVATIONS WHERE userid = ? AND cancelled = 0";
-  private PreparedStatement getReservationsStatement;
-
-  private static final String GET_SINGLE_FLIGHT = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price "
-      + "FROM FLIGHTS WHERE fid = ?";
-  private PreparedStatement getSingleFlightStatement;
-
-  private static final String GET_ALL_FLIGHT_CAPACITIES = "WITH FlightOne(flight1, count) AS (SELECT flight1, Count(flight1) FROM RESERVATIONS WHERE cancelled = 0 GROUP BY flight1), "
-      + "FlightTwo(flight2, count) AS (SELECT flight2, Count(flight2) FROM RESERVATIONS WHERE cancelled = 0 GROUP BY flight2) "
-      + "SELECT FO.flight1 AS fid1, FO.count AS count1, FT.flight2 AS fid2, FT.count AS count2 FROM FlightOne AS FO, FlightTwo AS FT";
-  private PreparedStatement getAllFlightCapacities;
-
-  private static final String GET_RESERVATION_ID = "SELECT Count(*) AS count FROM RESERVATIONS";
-  private PreparedStatement getReservationIdStatement;
-
-  private static final String CREATE_RESERVATION = "INSERT INTO RESERVATIONS (id, userid, flight1, flight2, paid, cancelled) VALUES (?, ?, ?, ?, ?, ?)";
-  private PreparedStatement createReservationStatement;
-
-  private static final String PAY_RESERVATION = "UPDATE RESERVATIONS SET paid = 1 WHERE id = ?";
-  private PreparedStatement payReservationStatement;
-
-  private static final String UPDATE_BALANCE = "UPDATE USERS SET balance = ? WHERE username = ?";
-  private PreparedStatement updateBalanceStatement;
-
-  private static final String CANCEL_RESERVATION = "UPDATE RESERVATIONS SET cancelled = 1 WHERE id = ?";
-  private PreparedStatement cancelReservationStatement;
+      + "AND F1.day_of_month BETWEEN ? AND ? AND F2.day_of_month = F1.day_of_month AND F2.canceled = 0 ORDER BY F1.actual_time + F2.actual_time ASC, F1.fid ASC, F2.fid ASC";
+
+  // Every flight that can be a leg of an itinerary between two cities
+  private static final String GET_LEGS = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price "
+      + "FROM FLIGHTS WHERE day_of_month BETWEEN ? AND ? AND canceled = 0 AND (origin_city = ? OR dest_city = ?)";
+
+  // The IN lists are filled in per batch search
+  private static final String GET_DAY_FLIGHTS = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price "
+      + "FROM FLIGHTS WHERE day_of_month = ? AND canceled = 0 AND (origin_city IN (%s) OR dest_city IN (%s)) ORDER BY actual_time ASC, fid ASC";
+
+  // Continue a search after the last itinerary it listed
+  private static final String GET_DIRECT_FLIGHTS_AFTER = GET_DIRECT_FLIGHTS.replace(" ORDER BY",
+      " AND (actual_time > ? OR (actual_time = ? AND fid > ?)) ORDER BY");
+
+  private static final String GET_INDIRECT_FLIGHTS_AFTER = GET_INDIRECT_FLIGHTS.replace(" ORDER BY",
+      " AND (F1.actual_time + F2.actual_time > ? OR (F1.actual_time + F2.actual_time = ? "
+          + "AND (F1.fid > ? OR (F1.fid = ? AND F2.fid > ?)))) ORDER BY");
+
+  // The same one-stop search read from the precomputed connections, see
+  // OneStopConnections. Takes the same parameters as the join.
+  private static final String GET_PRECOMPUTED_INDIRECT_FLIGHTS = "SELECT TOP (?) " + INDIRECT_FLIGHT_COLUMNS
+      + "FROM ONE_STOP_CONNECTIONS AS C INNER JOIN FLIGHTS AS F1 ON F1.fid = C.fid1 INNER JOIN FLIGHTS AS F2 ON F2.fid = C.fid2 "
+      + "WHERE C.origin_city = ? AND C.dest_city = ? AND C.day_of_month BETWEEN ? AND ? ORDER BY C.total_time ASC, C.fid1 ASC, C.fid2 ASC";
+
+  private static final String GET_PRECOMPUTED_INDIRECT_FLIGHTS_AFTER = GET_PRECOMPUTED_INDIRECT_FLIGHTS.replace(
+      " ORDER BY", " AND (C.total_time > ? OR (C.total_time = ? AND (C.fid1 > ? OR (C.fid1 = ? AND C.fid2 > ?)))) ORDER BY");
+
+  // One row per active reservation, or a single row with a NULL id if there
+  // are none, each with the user's reservations_version
+  private static final String GET_RESERVATIONS = "SELECT R.id, R.paid, F1.fid AS F1_fid, F1.day_of_month AS F1_day_of_month, F1.carrier_id AS F1_carrier_id, "
+      + "F1.flight_num AS F1_flight_num, F1.origin_city AS F1_origin_city, F1.dest_city AS F1_dest_city, F1.actual_time AS F1_actual_time, "
+      + "F1.capacity AS F1_capacity, F1.price AS F1_price, F2.fid AS F2_fid, F2.day_of_month AS F2_day_of_month, F2.carrier_id AS F2_carrier_id, "
+      + "F2.flight_num AS F2_flight_num, F2.origin_city AS F2_origin_city, F2.dest_city AS F2_dest_city, F2.actual_time AS F2_actual_time, "
+      + "F2.capacity AS F2_capacity, F2.price AS F2_price, U.reservations_version "
+      + "FROM USERS AS U LEFT OUTER JOIN RESERVATIONS AS R ON R.userid = U.username AND R.cancelled = 0 "
+      + "LEFT OUTER JOIN FLIGHTS AS F1 ON R.flight1 = F1.fid LEFT OUTER JOIN FLIGHTS AS F2 ON R.flight2 = F2.fid "
+      + "WHERE U.username = ? ORDER BY R.id ASC";
+
+  // Book, pay and cancel each run as one batch, so a command is a single round
+  // trip and its locks are only held while the batch runs. Every batch returns
+  // one row whose status column is 0 on success, and on success raises the
+  // user's reservations_version and returns it in a version column (see
+  // ReservationCache).
+  //
+  // Book returns a row per flight instead, each with a sold_out column that is 1 if
+  // the flight has no seats left, which keeps FullFlights current.
+  private static final String BOOK_FLIGHT_ROWS = "SELECT F.fid, CASE WHEN F.capacity <= "
+      + "(SELECT Count(*) FROM RESERVATIONS AS R WHERE R.cancelled = 0 AND (R.flight1 = F.fid OR R.flight2 = F.fid)) "
+      + "THEN 1 ELSE 0 END AS sold_out FROM FLIGHTS AS F WHERE F.fid IN (@fid1, @fid2)";
+
+  private static final String BOOK = "SET NOCOUNT ON; SET XACT_ABORT ON; "
+      + "DECLARE @user VARCHAR(20) = ?, @fid1 INT = ?, @fid2 INT = ?, @id INT, @day_bit INT, @version INT; "
+      + "BEGIN TRANSACTION; "
+      + "SELECT @day_bit = POWER(2, day_of_month - 1) FROM FLIGHTS WHERE fid = @fid1; "
+      + "IF EXISTS (SELECT * FROM USERS WITH (UPDLOCK) WHERE username = @user AND booked_days & @day_bit <> 0) "
+      + "SELECT 1 AS status, 0 AS id, 0 AS fid, 0 AS sold_out "
+      + "ELSE IF EXISTS (SELECT * FROM FLIGHTS AS F WHERE F.fid IN (@fid1, @fid2) AND F.capacity <= "
+      + "(SELECT Count(*) FROM RESERVATIONS AS R WHERE R.cancelled = 0 AND (R.flight1 = F.fid OR R.flight2 = F.fid))) "
+      + "SELECT 2 AS status, 0 AS id, T.* FROM (" + BOOK_FLIGHT_ROWS + ") AS T "
+      + "ELSE BEGIN "
+      + "SELECT @id = ISNULL(MAX(id), 0) + 1 FROM (SELECT MAX(id) AS id FROM RESERVATIONS "
+      + "UNION ALL SELECT MAX(id) FROM RESERVATIONS_HISTORY) AS R; "
+      + "INSERT INTO RESERVATIONS (id, userid, flight1, flight2, paid, cancelled) VALUES (@id, @user, @fid1, @fid2, 0, 0); "
+      + "UPDATE USERS SET booked_days = booked_days | @day_bit, "
+      + "@version = reservations_version = reservations_version + 1 WHERE username = @user; "
+      + "SELECT 0 AS status, @id AS id, @version AS version, T.* FROM (" + BOOK_FLIGHT_ROWS + ") AS T; "
+      + "END "
+      + "COMMIT TRANSACTION;";
+
+  // With several shards a booking first takes its seats and id in BOOKED_SEATS
+  // on the home database, then inserts the reservation on the user's shard,
+  // giving the seats back if that fails (see ShardRouter)
+  private static final String BOOKED_SEAT_ROWS = "SELECT F.fid, CASE WHEN F.capacity <= "
+      + "(SELECT Count(*) FROM BOOKED_SEATS AS S WHERE S.cancelled = 0 AND (S.flight1 = F.fid OR S.flight2 = F.fid)) "
+      + "THEN 1 ELSE 0 END AS sold_out FROM FLIGHTS AS F WHERE F.fid IN (@fid1, @fid2)";
+
+  private static final String HOLD_SEATS = "SET NOCOUNT ON; SET XACT_ABORT ON; "
+      + "DECLARE @fid1 INT = ?, @fid2 INT = ?, @id INT; "
+      + "BEGIN TRANSACTION; "
+      + "IF EXISTS (SELECT * FROM FLIGHTS AS F WHERE F.fid IN (@fid1, @fid2) AND F.capacity <= "
+      + "(SELECT Count(*) FROM BOOKED_SEATS AS S WHERE S.cancelled = 0 AND (S.flight1 = F.fid OR S.flight2 = F.fid))) "
+      + "SELECT 2 AS status, 0 AS id, T.* FROM (" + BOOKED_SEAT_ROWS + ") AS T "
+      + "ELSE BEGIN "
+      + "SELECT @id = ISNULL(MAX(id), 0) + 1 FROM BOOKED_SEATS; "
+      + "INSERT INTO BOOKED_SEATS (id, flight1, flight2, cancelled) VALUES (@id, @fid1, @fid2, 0); "
+      + "SELECT 0 AS status, @id AS id, T.* FROM (" + BOOKED_SEAT_ROWS + ") AS T; "
+      + "END "
+      + "COMMIT TRANSACTION;";
+
+  private static final String RELEASE_SEATS = "UPDATE BOOKED_SEATS SET cancelled = 1 WHERE id = ?";
+
+  private static final String BOOK_ON_SHARD = "SET NOCOUNT ON; SET XACT_ABORT ON; "
+      + "DECLARE @id INT = ?, @user VARCHAR(20) = ?, @fid1 INT = ?, @fid2 INT = ?, @day_bit INT, @version INT; "
+      + "BEGIN TRANSACTION; "
+      + "SELECT @day_bit = POWER(2, day_of_month - 1) FROM FLIGHTS WHERE fid = @fid1; "
+      + "IF EXISTS (SELECT * FROM USERS WITH (UPDLOCK) WHERE username = @user AND booked_days & @day_bit <> 0) "
+      + "SELECT 1 AS status "
+      + "ELSE BEGIN "
+      + "INSERT INTO RESERVATIONS (id, userid, flight1, flight2, paid, cancelled) VALUES (@id, @user, @fid1, @fid2, 0, 0); "
+      + "UPDATE USERS SET booked_days = booked_days | @day_bit, "
+      + "@version = reservations_version = reservations_version + 1 WHERE username = @user; "
+      + "SELECT 0 AS status, @version AS version; "
+      + "END "
+      + "COMMIT TRANSACTION;";
+
+  private static final String PAY = "SET NOCOUNT ON; SET XACT_ABORT ON; "
+      + "DECLARE @id INT = ?, @user VARCHAR(20) = ?, @cost INT, @version INT; "
+      + "BEGIN TRANSACTION; "
+      + "SELECT @cost = F1.price + ISNULL(F2.price, 0) FROM RESERVATIONS AS R INNER JOIN FLIGHTS AS F1 ON R.flight1 = F1.fid "
+      + "LEFT OUTER JOIN FLIGHTS AS F2 ON R.flight2 = F2.fid WHERE R.id = @id AND R.userid = @user AND R.paid = 0 AND R.cancelled = 0; "
+      + "IF @cost IS NULL "
+      + "SELECT 1 AS status, 0 AS balance, 0 AS cost "
+      + "ELSE BEGIN "
+      + "UPDATE USERS SET balance = balance - @cost, @version = reservations_version = reservations_version + 1 "
+      + "WHERE username = @user AND balance >= @cost; "
+      + "IF @@ROWCOUNT = 0 "
+      + "SELECT 2 AS status, balance, @cost AS cost FROM USERS WHERE username = @user "
+      + "ELSE BEGIN "
+      + "UPDATE RESERVATIONS SET paid = 1 WHERE id = @id; "
+      + "SELECT 0 AS status, balance, @cost AS cost, @version AS version FROM USERS WHERE username = @user; "
+      + "END "
+      + "END "
+      + "COMMIT TRANSACTION;";
+
+  private static final String CANCEL = "SET NOCOUNT ON; SET XACT_ABORT ON; "
+      + "DECLARE @id INT = ?, @user VARCHAR(20) = ?, @refund INT, @day_bit INT, @version INT; "
+      + "BEGIN TRANSACTION; "
+      + "SELECT @refund = CASE WHEN R.paid = 1 THEN F1.price + ISNULL(F2.price, 0) ELSE 0 END, "
+      + "@day_bit = POWER(2, F1.day_of_month - 1) "
+      + "FROM RESERVATIONS AS R INNER JOIN FLIGHTS AS F1 ON R.flight1 = F1.fid LEFT OUTER JOIN FLIGHTS AS F2 ON R.flight2 = F2.fid "
+      + "WHERE R.id = @id AND R.userid = @user AND R.cancelled = 0; "
+      + "IF @refund IS NULL "
+      + "SELECT 1 AS status, 0 AS balance "
+      + "ELSE BEGIN "
+      + "UPDATE RESERVATIONS SET cancelled = 1 WHERE id = @id; "
+      + "UPDATE USERS SET balance = balance + @refund, booked_days = booked_days & ~@day_bit, "
+      + "@version = reservations_version = reservations_version + 1 WHERE username = @user; "
+      + "SELECT 0 AS status, balance, @version AS version FROM USERS WHERE username = @user; "
+      + "END "
+      + "COMMIT TRANSACTION;";
+
+  // Cleans up after a batch that was interrupted before it could commit
+  private static final String ROLLBACK_IF_OPEN = "IF @@TRANCOUNT > 0 ROLLBACK TRANSACTION";
 
   private User user;
-  private List<Flight> directFlights;
+
+  // Every itinerary listed by the last search and its continuations, indexed by
+  // itinerary number
   private List<List<Flight>> totalFlightsList;
 
+  // Where the last search stopped, for "search next"
+  private SearchCursor searchCursor;
+
   public Query() throws SQLException, IOException {
     this(null, null, null, null);
   }
 
   protected Query(String serverURL, String dbName, String adminName, String password) throws SQLException, IOException {
-    conn = serverURL == null ? openConnectionFromDbConn()
-        : openConnectionFromCredential(serverURL, dbName, adminName, password);
+    this(serverURL == null ? "dbconn" : serverURL + "/" + dbName + "/" + adminName,
+        serverURL == null ? Query::openConnectionFromDbConn
+            : () -> openConnectionFromCredential(serverURL, dbName, adminName, password));
+  }
 
-    prepareStatements();
+  /**
+   * Connects with the given factory, which tests use to run on a stand-in
+   * database.
+   *
+   * @param key identifies the database to {@link ConnectionWarmer}
+   */
+  Query(String key, ConnectionFactory connectionFactory) throws SQLException, IOException {
+    this.connectionFactory = connectionFactory;
+    statements = ConnectionWarmer.take(key, connectionFactory);
+    conn = statements.connection();
+    shardStatements[0] = statements;
+    readStatements = statements;
+    OneStopConnections.start(connectionFactory);
+    ReservationArchiver.start(connectionFactory);
+    UsernameFilter.start(connectionFactory);
   }
 
   /**
@@ -102,8 +269,10 @@ public class Query {
    */
   public static Connection openConnectionFromDbConn() throws SQLException, IOException {
     // Connect to the database with the provided connection configuration
-    Properties configProps = new Properties();
-    configProps.load(new FileInputStream("dbconn.properties"));
+    Properties configProps = Settings.dbconn();
+    if (configProps.getProperty("flightapp.server_url") == null) {
+      throw new FileNotFoundException("dbconn.properties is missing or has no flightapp.server_url");
+    }
     String serverURL = configProps.getProperty("flightapp.server_url");
     String dbName = configProps.getProperty("flightapp.database_name");
     String adminName = configProps.getProperty("flightapp.username");
@@ -133,7 +302,7 @@ public class Query {
     // By default, set the transaction isolation level to serializable
     conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
 
-    return conn;
+    return StatementTracer.wrap(conn);
   }
 
   /**
@@ -143,13 +312,75 @@ public class Query {
     return conn;
   }
 
+  /**
+   * Returns the logged in user's username, or null if no one is logged in
+   */
+  String currentUsername() {
+    return user == null ? null : user.username;
+  }
+
+  /**
+   * Returns the number of this session, unique among the sessions opened in
+   * this JVM
+   */
+  long sessionId() {
+    return sessionId;
+  }
+
   /**
    * Closes the application-to-database connection
    */
   public void closeConnection() throws SQLException {
+    if (replicaStatements != null) {
+      replicaStatements.connection().close();
+    }
+    for (int i = 1; i < shardStatements.length; i++) {
+      if (shardStatements[i] != null) {
+        shardStatements[i].connection().close();
+      }
+    }
     conn.close();
   }
 
+  /**
+   * Returns the statements searches should read flights with right now,
+   * opening the replica connection the first time it is used.
+   */
+  private StatementCache chooseReadStatements() {
+    if (!ReplicaRouter.usable()) {
+      return statements;
+    }
+    if (replicaStatements == null) {
+      try {
+        replicaStatements = ConnectionWarmer.take("replica", ReplicaRouter.factory());
+      } catch (SQLException e) {
+        ReplicaRouter.markFailed(e);
+        return statements;
+      } catch (IOException e) {
+        return statements;
+      }
+    }
+    return replicaStatements;
+  }
+
+  /**
+   * Returns the statements of the shard holding the given user's data.
+   */
+  private StatementCache statementsFor(String username) throws SQLException {
+    return shardStatements(ShardRouter.shardOf(username));
+  }
+
+  private StatementCache shardStatements(int shard) throws SQLException {
+    if (shardStatements[shard] == null) {
+      try {
+        shardStatements[shard] = ConnectionWarmer.take(ShardRouter.key(shard), ShardRouter.factory(shard));
+      } catch (IOException e) {
+        throw new SQLException("Failed to connect to shard " + shard, e);
+      }
+    }
+    return shardStatements[shard];
+  }
+
   /**
    * Clear the data in any custom tables created.
    * 
@@ -157,36 +388,80 @@ public class Query {
    */
   public void clearTables() {
     try {
-      clearReservationsTableStatement.executeUpdate();
-      clearReservationsTableStatement.close();
+      for (int shard = 0; shard < shardStatements.length; shard++) {
+        StatementCache shardStatements = shardStatements(shard);
+        PreparedStatement clearReservationsTableStatement = shardStatements.prepare(CLEAR_RESERVATOINS_TABLE);
+        clearReservationsTableStatement.executeUpdate();
+
+        PreparedStatement clearReservationsHistoryTableStatement = shardStatements
+            .prepare(CLEAR_RESERVATIONS_HISTORY_TABLE);
+        clearReservationsHistoryTableStatement.executeUpdate();
+
+        PreparedStatement clearUsersTableStatement = shardStatements.prepare(CLEAR_USERS_TABLE);
+        clearUsersTableStatement.executeUpdate();
+      }
+
+      PreparedStatement clearBookedSeatsTableStatement = statements.prepare(CLEAR_BOOKED_SEATS_TABLE);
+      clearBookedSeatsTableStatement.executeUpdate();
 
-      clearUsersTableStatement.executeUpdate();
-      clearUsersTableStatement.close();
+      ReservationCache.clear();
+      FullFlights.clear();
+      UsernameFilter.clear();
     } catch (Exception e) {
       e.getMessage();
     }
   }
 
-  /*
-   * prepare all the SQL statements in this method.
+  /**
+   * Prepares the statements every session runs and executes the read-only ones
+   * once, so their plans are compiled before the first real command.
+   */
+  static void prime(StatementCache statements) throws SQLException {
+    statements.prepare(TRANCOUNT_SQL).executeQuery().close();
+
+    PreparedStatement findUserStatement = statements.prepare(FIND_USER);
+    findUserStatement.setString(1, "");
+    findUserStatement.executeQuery().close();
+
+    PreparedStatement getReservationsStatement = statements.prepare(GET_RESERVATIONS);
+    getReservationsStatement.setString(1, "");
+    getReservationsStatement.executeQuery().close();
+
+    String origin = Settings.get("flightapp.warmup.origin", "Seattle WA");
+    String dest = Settings.get("flightapp.warmup.dest", "Boston MA");
+    int day = Settings.getInt("flightapp.warmup.day", 1);
+    primeRoute(statements, origin, dest, day, day, 1);
+
+    statements.prepare(BOOK);
+    statements.prepare(PAY);
+    statements.prepare(CANCEL);
+  }
+
+  /**
+   * Runs the direct and one-stop search queries for a route and reads up to
+   * {@code rows} of each, which compiles their plans and brings the route's
+   * flights into the server's buffer pool.
    */
-  private void prepareStatements() throws SQLException {
-    checkFlightCapacityStatement = conn.prepareStatement(CHECK_FLIGHT_CAPACITY);
-    tranCountStatement = conn.prepareStatement(TRANCOUNT_SQL);
-    clearUsersTableStatement = conn.prepareStatement(CLEAR_USERS_TABLE);
-    clearReservationsTableStatement = conn.prepareStatement(CLEAR_RESERVATOINS_TABLE);
-    createUserStatement = conn.prepareStatement(CREATE_USER);
-    findUserStatement = conn.prepareStatement(FIND_USER);
-    getDirectFlightsStatement = conn.prepareStatement(GET_DIRECT_FLIGHTS);
-    getIndirectFlightsStatement = conn.prepareStatement(GET_INDIRECT_FLIGHTS);
-    getReservationsStatement = conn.prepareStatement(GET_RESERVATIONS);
-    getSingleFlightStatement = conn.prepareStatement(GET_SINGLE_FLIGHT);
-    getAllFlightCapacities = conn.prepareStatement(GET_ALL_FLIGHT_CAPACITIES);
-    createReservationStatement = conn.prepareStatement(CREATE_RESERVATION);
-    payReservationStatement = conn.prepareStatement(PAY_RESERVATION);
-    getReservationIdStatement = conn.prepareStatement(GET_RESERVATION_ID);
-    updateBalanceStatement = conn.prepareStatement(UPDATE_BALANCE);
-    cancelReservationStatement = conn.prepareStatement(CANCEL_RESERVATION);
+  static void primeRoute(StatementCache statements, String originCity, String destinationCity, int firstDay,
+      int lastDay, int rows) throws SQLException {
+    List<String> searches = new ArrayList<>(Arrays.asList(GET_DIRECT_FLIGHTS, GET_INDIRECT_FLIGHTS));
+    if (OneStopConnections.enabled()) {
+      searches.add(GET_PRECOMPUTED_INDIRECT_FLIGHTS);
+    }
+    for (String sql : searches) {
+      PreparedStatement searchStatement = statements.prepare(sql);
+      searchStatement.clearParameters();
+      searchStatement.setInt(1, rows);
+      searchStatement.setString(2, originCity);
+      searchStatement.setString(3, destinationCity);
+      searchStatement.setInt(4, firstDay);
+      searchStatement.setInt(5, lastDay);
+      try (ResultSet rs = searchStatement.executeQuery()) {
+        while (rs.next()) {
+          // Only reading the rows
+        }
+      }
+    }
   }
 
   /**
@@ -200,11 +475,16 @@ public class Query {
    *         return "Logged in as [username]\n".
    */
   public String transaction_login(String username, String password) {
+    if (user == null && !UsernameFilter.mightExist(username)) {
+      // Nothing was read, so there is no transaction to check
+      return "Login failed\n";
+    }
     try {
       if (user != null) {
         return "User already logged in\n";
       }
 
+      PreparedStatement findUserStatement = statementsFor(username).prepare(FIND_USER);
       findUserStatement.clearParameters();
       findUserStatement.setString(1, username.toLowerCase());
       ResultSet userSet = findUserStatement.executeQuery();
@@ -233,8 +513,22 @@ public class Query {
       }
 
       user = new User(userSet.getString(1), userSet.getInt(4));
+      user.tokenVersion = userSet.getInt("token_version");
+      int reservationsVersion = userSet.getInt("reservations_version");
       userSet.close();
 
+      // Start every session from the database's view of the user's reservations
+      Lock lock = ReservationCache.lock(user.username);
+      try {
+        if (!ReservationCache.isCurrent(user.username, reservationsVersion)) {
+          loadReservations(user.username);
+        }
+      } catch (SQLException e) {
+        ReservationCache.invalidate(user.username);
+      } finally {
+        lock.unlock();
+      }
+
       return "Logged in as " + username + "\n";
     } catch (Exception e) {
       return "Login failed\n";
@@ -243,6 +537,105 @@ public class Query {
     }
   }
 
+  /**
+   * Returns a session token the logged in user can later resume this session
+   * with, see {@link SessionTokens}.
+   *
+   * @return If no user has logged in, then return "Cannot issue a session
+   *         token, not logged in\n". Otherwise return "Session token:
+   *         [token]\n".
+   */
+  public String transaction_token() {
+    if (user == null) {
+      return "Cannot issue a session token, not logged in\n";
+    }
+    return "Session token: " + SessionTokens.issue(user.username, user.tokenVersion) + "\n";
+  }
+
+  /**
+   * Logs in as the user a session token was issued to, without the password.
+   * The token's signature and expiry are checked in memory; the user's row is
+   * read to check the token has not been revoked and to load the balance.
+   *
+   * @return If someone has already logged in, then return "User already logged
+   *         in\n". If the token is invalid, expired or revoked, return "Resume
+   *         failed\n". Otherwise, return "Logged in as [username]\n".
+   */
+  public String transaction_resume(String token) {
+    try {
+      if (user != null) {
+        return "User already logged in\n";
+      }
+
+      SessionTokens.Claims claims = SessionTokens.verify(token);
+      if (claims == null) {
+        return "Resume failed\n";
+      }
+
+      PreparedStatement findUserStatement = statementsFor(claims.username).prepare(FIND_USER);
+      findUserStatement.clearParameters();
+      findUserStatement.setString(1, claims.username);
+      int reservationsVersion;
+      try (ResultSet userSet = findUserStatement.executeQuery()) {
+        if (!userSet.next() || userSet.getInt("token_version") != claims.version) {
+          return "Resume failed\n";
+        }
+        user = new User(userSet.getString("username"), userSet.getInt("balance"));
+        user.tokenVersion = claims.version;
+        reservationsVersion = userSet.getInt("reservations_version");
+      }
+
+      Lock lock = ReservationCache.lock(user.username);
+      try {
+        if (!ReservationCache.isCurrent(user.username, reservationsVersion)) {
+          loadReservations(user.username);
+        }
+      } catch (SQLException e) {
+        ReservationCache.invalidate(user.username);
+      } finally {
+        lock.unlock();
+      }
+
+      return "Logged in as " + user.username + "\n";
+    } catch (SQLException e) {
+      return "Resume failed\n";
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  /**
+   * Revokes every session token issued to the logged in user, on any instance.
+   * This session stays logged in, and tokens issued from now on are valid.
+   *
+   * @return If no user has logged in, then return "Cannot revoke session
+   *         tokens, not logged in\n". For all other errors, return "Failed to
+   *         revoke session tokens\n". Otherwise return "Revoked session tokens
+   *         of [username]\n".
+   */
+  public String transaction_revoke() {
+    try {
+      if (user == null) {
+        return "Cannot revoke session tokens, not logged in\n";
+      }
+
+      PreparedStatement revokeStatement = statementsFor(user.username).prepare(REVOKE_TOKENS);
+      revokeStatement.clearParameters();
+      revokeStatement.setString(1, user.username);
+      try (ResultSet rs = revokeStatement.executeQuery()) {
+        if (!rs.next()) {
+          return "Failed to revoke session tokens\n";
+        }
+        user.tokenVersion = rs.getInt("token_version");
+      }
+      return "Revoked session tokens of " + user.username + "\n";
+    } catch (SQLException e) {
+      return "Failed to revoke session tokens\n";
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
   /**
    * Implement the create user function.
    *
@@ -260,6 +653,19 @@ public class Query {
         return "Failed to create user\n";
       }
 
+      // Look for a user with the name before hashing, unless the filter knows
+      // there is none
+      if (UsernameFilter.enabled() && UsernameFilter.mightExist(username)) {
+        PreparedStatement findUserStatement = statementsFor(username).prepare(FIND_USER);
+        findUserStatement.clearParameters();
+        findUserStatement.setString(1, username.toLowerCase());
+        try (ResultSet userSet = findUserStatement.executeQuery()) {
+          if (userSet.next()) {
+            return "Failed to create user\n";
+          }
+        }
+      }
+
       // Generate a random cryptographic salt
       SecureRandom random = new SecureRandom();
       byte[] salt = new byte[16];
@@ -278,12 +684,14 @@ public class Query {
         throw new IllegalStateException();
       }
 
+      PreparedStatement createUserStatement = statementsFor(username).prepare(CREATE_USER);
       createUserStatement.clearParameters();
       createUserStatement.setString(1, username.toLowerCase());
       createUserStatement.setBytes(2, hash);
       createUserStatement.setBytes(3, salt);
       createUserStatement.setInt(4, initAmount);
       createUserStatement.execute();
+      UsernameFilter.add(username);
 
       return "Created user " + username + "\n";
     } catch (Exception e) {
@@ -328,426 +736,789 @@ public class Query {
    */
   public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
       int numberOfItineraries) {
+    return transaction_search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, false);
+  }
+
+  /**
+   * Same as {@link #transaction_search(String, String, boolean, int, int)}, but
+   * if {@code availableOnly} is true, itineraries with a sold-out flight are
+   * left out and the next ones take their place. Sold-out flights are looked up
+   * in {@link FullFlights}.
+   *
+   * The search can be continued with {@link #transaction_searchNext()}.
+   */
+  public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+      int numberOfItineraries, boolean availableOnly) {
+    return transaction_search(originCity, destinationCity, directFlight, dayOfMonth, dayOfMonth, numberOfItineraries,
+        availableOnly, ItineraryRanker.Ranking.TIME);
+  }
+
+  /**
+   * Searches every day from {@code firstDay} to {@code lastDay} at once and
+   * lists the shortest itineraries across all of them, in the same order and
+   * format as a single-day search. One-stop itineraries still connect on the
+   * same day. Each query covers the whole range, so this costs about as much
+   * as searching one day.
+   *
+   * With a ranking other than {@code TIME}, itineraries are ordered by price or
+   * value instead, see {@link ItineraryRanker}.
+   */
+  public String transaction_search(String originCity, String destinationCity, boolean directFlight, int firstDay,
+      int lastDay, int numberOfItineraries, boolean availableOnly, ItineraryRanker.Ranking ranking) {
     try {
-      StringBuffer sb = new StringBuffer();
-      directFlights = new ArrayList<>();
       totalFlightsList = new ArrayList<>();
+      searchCursor = new SearchCursor(originCity, destinationCity, directFlight, firstDay, lastDay,
+          numberOfItineraries, availableOnly, ranking);
+      return nextPage();
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
 
-      try {
-        directFlights = getAllDirectFlights(originCity, destinationCity, dayOfMonth, numberOfItineraries);
-      } catch (Exception e) {
-        e.getMessage();
+  /**
+   * Lists the next page of itineraries of the session's last search, numbered on
+   * from where the previous page stopped. Only the rows after the last listed
+   * itinerary are read, so earlier pages are not searched again.
+   *
+   * Direct flights come first for as long as there are enough of them to fill a
+   * page, the same as in a single search; once they run out the page is filled
+   * with one-stop itineraries and sorted by total flight time.
+   *
+   * Bookings and cancellations by any session can change which flights are
+   * sold out between pages. Listed itineraries are never listed again. A page
+   * by time only looks past the last itinerary listed, so in an available-only
+   * search an itinerary before that point that frees up is not listed, and one
+   * listed earlier may have sold out since.
+   *
+   * @return "No search to continue\n" if there has been no search in this
+   *         session, "No more itineraries\n" if every itinerary has been listed,
+   *         otherwise the itineraries in the same format as
+   *         {@link #transaction_search(String, String, boolean, int, int)}.
+   */
+  public String transaction_searchNext() {
+    try {
+      if (searchCursor == null) {
+        return "No search to continue\n";
       }
+      if (searchCursor.exhausted()) {
+        return "No more itineraries\n";
+      }
+      return nextPage();
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
 
-      if (directFlight) {
-        for (int i = 0; i < directFlights.size(); i++) {
-          sb.append("Itinerary " + i + ": 1 flight(s), " + directFlights.get(i).time + " minutes\n");
-          sb.append(directFlights.get(i));
-        }
-
-        totalFlightsList.clear();
-      } else {
-        try {
-          if (directFlights.size() < numberOfItineraries) {
-            getIndirectFlightsStatement.clearParameters();
-            getIndirectFlightsStatement.setInt(1, numberOfItineraries - directFlights.size());
-            getIndirectFlightsStatement.setString(2, originCity);
-            getIndirectFlightsStatement.setString(3, destinationCity);
-            getIndirectFlightsStatement.setInt(4, dayOfMonth);
-            getIndirectFlightsStatement.setInt(5, dayOfMonth);
-
-            ResultSet indirectFlights = getIndirectFlightsStatement.executeQuery();
-
-            List<List<Flight>> indirectFlightsList = new ArrayList<List<Flight>>();
-
-            while (indirectFlights.next()) {
-              int result_f1_fid = indirectFlights.getInt("F1_fid");
-              int result_f1_dayOfMonth = indirectFlights.getInt("F1_day_of_month");
-              String result_f1_carrierId = indirectFlights.getString("F1_carrier_id");
-              String result_f1_flightNum = indirectFlights.getString("F1_flight_num");
-              String result_f1_originCity = indirectFlights.getString("F1_origin_city");
-              String result_f1_destCity = indirectFlights.getString("F1_dest_city");
-              int result_f1_time = indirectFlights.getInt("F1_actual_time");
-              int result_f1_capacity = indirectFlights.getInt("F1_capacity");
-              int result_f1_price = indirectFlights.getInt("F1_price");
-
-              Flight flight1 = new Flight(result_f1_fid, result_f1_dayOfMonth, result_f1_carrierId, result_f1_flightNum,
-                  result_f1_originCity, result_f1_destCity, result_f1_time, result_f1_capacity, result_f1_price);
-
-              int result_f2_fid = indirectFlights.getInt("F2_fid");
-              int result_f2_dayOfMonth = indirectFlights.getInt("F2_day_of_month");
-              String result_f2_carrierId = indirectFlights.getString("F2_carrier_id");
-              String result_f2_flightNum = indirectFlights.getString("F2_flight_num");
-              String result_f2_originCity = indirectFlights.getString("F2_origin_city");
-              String result_f2_destCity = indirectFlights.getString("F2_dest_city");
-              int result_f2_time = indirectFlights.getInt("F2_actual_time");
-              int result_f2_capacity = indirectFlights.getInt("F2_capacity");
-              int result_f2_price = indirectFlights.getInt("F2_price");
-
-              Flight flight2 = new Flight(result_f2_fid, result_f2_dayOfMonth, result_f2_carrierId, result_f2_flightNum,
-                  result_f2_originCity, result_f2_destCity, result_f2_time, result_f2_capacity, result_f2_price);
-
-              indirectFlightsList.add(new ArrayList<>());
-              indirectFlightsList.get(indirectFlightsList.size() - 1).add(flight1);
-              indirectFlightsList.get(indirectFlightsList.size() - 1).add(flight2);
-            }
-
-            int directFlightsIndex = 0;
-            int indirectFlightsIndex = 0;
-            for (int i = 0; i < numberOfItineraries; i++) {
-              if (directFlightsIndex < directFlights.size() && indirectFlightsIndex < indirectFlightsList.size()) {
-                if (directFlights
-                    .get(directFlightsIndex).time < indirectFlightsList.get(indirectFlightsIndex).get(0).time
-                        + indirectFlightsList.get(indirectFlightsIndex).get(1).time) {
-                  sb.append(
-                      "Itinerary " + i + ": 1 flight(s), " + directFlights.get(directFlightsIndex).time + " minutes\n");
-                  sb.append(directFlights.get(directFlightsIndex));
-
-                  totalFlightsList.add(new ArrayList<Flight>());
-                  totalFlightsList.get(totalFlightsList.size() - 1).add(directFlights.get(directFlightsIndex));
-                  directFlightsIndex++;
-                } else if (directFlights
-                    .get(directFlightsIndex).time > indirectFlightsList.get(indirectFlightsIndex).get(0).time
-                        + indirectFlightsList.get(indirectFlightsIndex).get(1).time) {
-                  sb.append(
-                      "Itinerary " + i + ": 2 flight(s), " + (indirectFlightsList.get(indirectFlightsIndex).get(0).time
-                          + indirectFlightsList.get(indirectFlightsIndex).get(1).time) + " minutes\n");
-                  sb.append(indirectFlightsList.get(indirectFlightsIndex).get(0));
-                  sb.append(indirectFlightsList.get(indirectFlightsIndex).get(1));
-
-                  totalFlightsList.add(new ArrayList<Flight>());
-                  totalFlightsList.get(totalFlightsList.size() - 1)
-                      .add(indirectFlightsList.get(indirectFlightsIndex).get(0));
-                  totalFlightsList.get(totalFlightsList.size() - 1)
-                      .add(indirectFlightsList.get(indirectFlightsIndex).get(1));
-                  indirectFlightsIndex++;
-                } else {
-                  if (directFlights.get(directFlightsIndex).fid < indirectFlightsList.get(indirectFlightsIndex)
-                      .get(0).fid) {
-                    sb.append("Itinerary " + i + ": 1 flight(s), " + directFlights.get(directFlightsIndex).time
-                        + " minutes\n");
-                    sb.append(directFlights.get(directFlightsIndex));
-
-                    totalFlightsList.add(new ArrayList<Flight>());
-                    totalFlightsList.get(totalFlightsList.size() - 1).add(directFlights.get(directFlightsIndex));
-                    directFlightsIndex++;
-                  } else {
-                    sb.append("Itinerary " + i + ": 2 flight(s), "
-                        + (indirectFlightsList.get(indirectFlightsIndex).get(0).time
-                            + indirectFlightsList.get(indirectFlightsIndex).get(1).time)
-                        + " minutes\n");
-                    sb.append(indirectFlightsList.get(indirectFlightsIndex).get(0));
-                    sb.append(indirectFlightsList.get(indirectFlightsIndex).get(1));
-
-                    totalFlightsList.add(new ArrayList<Flight>());
-                    totalFlightsList.get(totalFlightsList.size() - 1)
-                        .add(indirectFlightsList.get(indirectFlightsIndex).get(0));
-                    totalFlightsList.get(totalFlightsList.size() - 1)
-                        .add(indirectFlightsList.get(indirectFlightsIndex).get(1));
-                    indirectFlightsIndex++;
-                  }
-                }
-              } else if (directFlightsIndex < directFlights.size()) {
-                sb.append(
-                    "Itinerary " + i + ": 1 flight(s), " + directFlights.get(directFlightsIndex).time + " minutes\n");
-                sb.append(directFlights.get(directFlightsIndex));
-
-                totalFlightsList.add(new ArrayList<Flight>());
-                totalFlightsList.get(totalFlightsList.size() - 1).add(directFlights.get(directFlightsIndex));
-                directFlightsIndex++;
-              } else if (indirectFlightsIndex < indirectFlightsList.size()) {
-                sb.append(
-                    "Itinerary " + i + ": 2 flight(s), " + (indirectFlightsList.get(indirectFlightsIndex).get(0).time
-                        + indirectFlightsList.get(indirectFlightsIndex).get(1).time) + " minutes\n");
-                sb.append(indirectFlightsList.get(indirectFlightsIndex).get(0));
-                sb.append(indirectFlightsList.get(indirectFlightsIndex).get(1));
-
-                totalFlightsList.add(new ArrayList<Flight>());
-                totalFlightsList.get(totalFlightsList.size() - 1)
-                    .add(indirectFlightsList.get(indirectFlightsIndex).get(0));
-                totalFlightsList.get(totalFlightsList.size() - 1)
-                    .add(indirectFlightsList.get(indirectFlightsIndex).get(1));
-                indirectFlightsIndex++;
-              }
-            }
+  /**
+   * Reads the next page of the current search, appends its itineraries to
+   * {@code totalFlightsList} and prints them.
+   */
+  private String nextPage() {
+    SearchCursor cursor = searchCursor;
+    try {
+      if (cursor.availableOnly) {
+        FullFlights.ensureLoaded(statements);
+      }
 
-            directFlights.clear();
-          } else {
-            for (int i = 0; i < directFlights.size(); i++) {
-              sb.append("Itinerary " + i + ": 1 flight(s), " + directFlights.get(i).time + " minutes\n");
-              sb.append(directFlights.get(i));
-            }
-          }
-          totalFlightsList.clear();
-        } catch (SQLException e) {
-          e.getMessage();
+      List<List<Flight>> page;
+      readStatements = chooseReadStatements();
+      SearchCursor start = cursor.copy();
+      try {
+        page = cursor.ranking == ItineraryRanker.Ranking.TIME ? nextPageByTime(cursor) : nextPageRanked(cursor);
+      } catch (SQLException e) {
+        if (readStatements == statements) {
+          throw e;
         }
+        // Read the page again on the primary, from where it started
+        ReplicaRouter.markFailed(e);
+        FlightEvents.retry();
+        readStatements = statements;
+        cursor = start;
+        searchCursor = start;
+        page = cursor.ranking == ItineraryRanker.Ranking.TIME ? nextPageByTime(cursor) : nextPageRanked(cursor);
       }
 
+      StringBuilder sb = new StringBuilder();
+      for (List<Flight> itinerary : page) {
+        int time = 0;
+        for (Flight f : itinerary) {
+          time += f.time;
+        }
+        sb.append("Itinerary " + totalFlightsList.size() + ": " + itinerary.size() + " flight(s), " + time
+            + " minutes\n");
+        for (Flight f : itinerary) {
+          sb.append(f);
+        }
+        totalFlightsList.add(itinerary);
+      }
       return sb.toString();
-    } finally {
-      checkDanglingTransaction();
+    } catch (SQLException e) {
+      return "Failed to search\n";
     }
   }
 
-  public List<Flight> getAllDirectFlights(String originCity, String destinationCity, int dayOfMonth,
-      int numberOfItineraries) {
-
-    List<Flight> list = new ArrayList<>();
-    try {
-      getDirectFlightsStatement.clearParameters();
-      getDirectFlightsStatement.setInt(1, numberOfItineraries);
-      getDirectFlightsStatement.setString(2, originCity);
-      getDirectFlightsStatement.setString(3, destinationCity);
-      getDirectFlightsStatement.setInt(4, dayOfMonth);
-
-      ResultSet directFlights = getDirectFlightsStatement.executeQuery();
-      while (directFlights.next()) {
-        int result_fid = directFlights.getInt("fid");
-        int result_dayOfMonth = directFlights.getInt("day_of_month");
-        String result_carrierId = directFlights.getString("carrier_id");
-        String result_flightNum = directFlights.getString("flight_num");
-        String result_originCity = directFlights.getString("origin_city");
-        String result_destCity = directFlights.getString("dest_city");
-        int result_time = directFlights.getInt("actual_time");
-        int result_capacity = directFlights.getInt("capacity");
-        int result_price = directFlights.getInt("price");
-
-        Flight flight = new Flight(result_fid, result_dayOfMonth, result_carrierId, result_flightNum, result_originCity,
-            result_destCity, result_time, result_capacity, result_price);
+  /**
+   * Reads the next page of a search by time, continuing after the last direct
+   * flight and one-stop itinerary listed.
+   */
+  private List<List<Flight>> nextPageByTime(SearchCursor cursor) throws SQLException {
+    int n = cursor.pageSize;
+    List<Flight> direct = new ArrayList<>();
+    if (!cursor.directDone) {
+      direct = getDirectFlights(cursor.originCity, cursor.destinationCity, cursor.firstDay, cursor.lastDay, n,
+          cursor.availableOnly, cursor.lastDirect);
+      cursor.directDone = direct.size() < n;
+      if (!direct.isEmpty()) {
+        cursor.lastDirect = direct.get(direct.size() - 1);
+      }
+    }
 
-        list.add(flight);
+    List<List<Flight>> indirect = new ArrayList<>();
+    if (!cursor.directFlight && !cursor.indirectDone && direct.size() < n) {
+      indirect = getIndirectFlights(cursor.originCity, cursor.destinationCity, cursor.firstDay, cursor.lastDay,
+          n - direct.size(), cursor.availableOnly, cursor.lastIndirect);
+      cursor.indirectDone = indirect.size() < n - direct.size();
+      if (!indirect.isEmpty()) {
+        cursor.lastIndirect = indirect.get(indirect.size() - 1);
       }
-      directFlights.close();
-    } catch (SQLException e) {
-      e.getErrorCode();
     }
 
-    return list;
+    return merge(direct, indirect);
   }
 
   /**
-   * Implements the book itinerary function.
-   *
-   * @param itineraryId ID of the itinerary to book. This must be one that is
-   *                    returned by search in the current session.
-   *
-   * @return If the user is not logged in, then return "Cannot book reservations,
-   *         not logged in\n". If the user is trying to book an itinerary with an
-   *         invalid ID or without having done a search, then return "No such
-   *         itinerary {@code itineraryId}\n". If the user already has a
-   *         reservation on the same day as the one that they are trying to book
-   *         now, then return "You cannot book two flights in the same day\n". For
-   *         all other errors, return "Booking failed\n".
+   * Ranks the next page of a search by price or value. The flights that can
+   * make up an itinerary are read once for the whole search; each page ranks
+   * the best itineraries up to its end and returns the best of those not listed
+   * yet. Direct and one-stop itineraries are ranked together.
    *
-   *         And if booking succeeded, return "Booked flight(s), reservation ID:
-   *         [reservationId]\n" where reservationId is a unique number in the
-   *         reservation system that starts from 1 and increments by 1 each time a
-   *         successful reservation is made by any user in the system.
+   * Listed itineraries are left out by their flights rather than by position,
+   * so a flight selling out or freeing up between pages of an available-only
+   * search neither repeats nor skips an itinerary.
    */
-  public String transaction_book(int itineraryId) {
-    try {
-      if (user == null) {
-        return "Cannot book reservations, not logged in\n";
-      }
+  private List<List<Flight>> nextPageRanked(SearchCursor cursor) throws SQLException {
+    if (cursor.legs == null) {
+      cursor.legs = getLegs(cursor.originCity, cursor.destinationCity, cursor.firstDay, cursor.lastDay);
+    }
 
-      if (totalFlightsList == null || directFlights == null) {
-        return "No such itinerary " + itineraryId + "\n";
-      }
+    int listed = totalFlightsList.size();
+    List<List<Flight>> ranked = new ItineraryRanker(cursor.ranking).rank(cursor.legs, cursor.originCity,
+        cursor.destinationCity, cursor.directFlight, listed + cursor.pageSize,
+        f -> cursor.availableOnly && FullFlights.isFull(f.fid));
+    if (ranked.size() < listed + cursor.pageSize) {
+      cursor.directDone = true;
+      cursor.indirectDone = true;
+    }
 
-      if (totalFlightsList.size() == 0 && directFlights.size() == 0) {
-        return "No such itinerary " + itineraryId + "\n";
+    Set<List<Integer>> seen = new HashSet<>();
+    for (List<Flight> itinerary : totalFlightsList) {
+      seen.add(fids(itinerary));
+    }
+    List<List<Flight>> page = new ArrayList<>();
+    for (List<Flight> itinerary : ranked) {
+      if (page.size() < cursor.pageSize && !seen.contains(fids(itinerary))) {
+        page.add(itinerary);
       }
+    }
+    return page;
+  }
 
-      if (totalFlightsList.size() > 0 && itineraryId > totalFlightsList.size() - 1) {
-        return "No such itinerary " + itineraryId + "\n";
-      }
+  private static List<Integer> fids(List<Flight> itinerary) {
+    List<Integer> fids = new ArrayList<>(itinerary.size());
+    for (Flight f : itinerary) {
+      fids.add(f.fid);
+    }
+    return fids;
+  }
 
-      if (directFlights.size() > 0 && itineraryId > directFlights.size() - 1) {
-        return "No such itinerary " + itineraryId + "\n";
+  /**
+   * Reads the flights between the given days that leave the origin or arrive at
+   * the destination, the legs of every itinerary between them.
+   */
+  private List<Flight> getLegs(String originCity, String destinationCity, int firstDay, int lastDay)
+      throws SQLException {
+    PreparedStatement getLegsStatement = readStatements.prepare(GET_LEGS);
+    getLegsStatement.clearParameters();
+    getLegsStatement.setInt(1, firstDay);
+    getLegsStatement.setInt(2, lastDay);
+    getLegsStatement.setString(3, originCity);
+    getLegsStatement.setString(4, destinationCity);
+
+    List<Flight> legs = new ArrayList<>();
+    try (ResultSet rs = getLegsStatement.executeQuery()) {
+      while (rs.next()) {
+        legs.add(readFlight(rs, ""));
       }
+    }
+    return legs;
+  }
 
-      List<Flight> flights = new ArrayList<>();
-
-      if (directFlights.size() > 0) {
-        flights.add(directFlights.get(itineraryId));
+  /**
+   * Merges direct flights and one-stop itineraries, each already sorted, into
+   * one list of itineraries in listing order.
+   */
+  private static List<List<Flight>> merge(List<Flight> direct, List<List<Flight>> indirect) {
+    List<List<Flight>> itineraries = new ArrayList<>();
+    int directIndex = 0;
+    int indirectIndex = 0;
+    while (directIndex < direct.size() || indirectIndex < indirect.size()) {
+      if (indirectIndex == indirect.size()
+          || (directIndex < direct.size() && comesFirst(direct.get(directIndex), indirect.get(indirectIndex)))) {
+        itineraries.add(Collections.singletonList(direct.get(directIndex++)));
       } else {
-        for (Flight f : totalFlightsList.get(itineraryId)) {
-          flights.add(f);
-        }
+        itineraries.add(indirect.get(indirectIndex++));
       }
+    }
+    return itineraries;
+  }
 
-      List<Reservation> reservations = new ArrayList<>();
-      int id = 0;
-      try {
-        conn.setAutoCommit(false);
-        try {
-          getReservationsStatement.clearParameters();
-          getReservationsStatement.setString(1, user.username.toLowerCase());
-
-          ResultSet allReservations = getReservationsStatement.executeQuery();
-          while (allReservations.next()) {
-            int rid = allReservations.getInt("id");
-            int flightOneId = allReservations.getInt("flight1");
-            int flightTwoId = allReservations.getInt("flight2");
-            int paid = allReservations.getInt("paid");
-            int cancelled = allReservations.getInt("cancelled");
-
-            Flight flightOne = null;
-            Flight flightTwo = null;
-
-            try {
-              getSingleFlightStatement.clearParameters();
-              getSingleFlightStatement.setInt(1, flightOneId);
-
-              ResultSet rs = getSingleFlightStatement.executeQuery();
-              rs.next();
-
-              int result_fid = rs.getInt("fid");
-              int result_dayOfMonth = rs.getInt("day_of_month");
-              String result_carrierId = rs.getString("carrier_id");
-              String result_flightNum = rs.getString("flight_num");
-              String result_originCity = rs.getString("origin_city");
-              String result_destCity = rs.getString("dest_city");
-              int result_time = rs.getInt("actual_time");
-              int result_capacity = rs.getInt("capacity");
-              int result_price = rs.getInt("price");
-
-              flightOne = new Flight(result_fid, result_dayOfMonth, result_carrierId, result_flightNum,
-                  result_originCity, result_destCity, result_time, result_capacity, result_price);
-            } catch (Exception e) {
-              conn.rollback();
-              conn.setAutoCommit(true);
-              return "Booking failed\n";
-            }
-
-            if (flightTwoId != 0) {
-              try {
-                getSingleFlightStatement.clearParameters();
-                getSingleFlightStatement.setInt(1, flightTwoId);
-
-                ResultSet rs = getSingleFlightStatement.executeQuery();
-                rs.next();
-
-                int result_fid = rs.getInt("fid");
-                int result_dayOfMonth = rs.getInt("day_of_month");
-                String result_carrierId = rs.getString("carrier_id");
-                String result_flightNum = rs.getString("flight_num");
-                String result_originCity = rs.getString("origin_city");
-                String result_destCity = rs.getString("dest_city");
-                int result_time = rs.getInt("actual_time");
-                int result_capacity = rs.getInt("capacity");
-                int result_price = rs.getInt("price");
-
-                flightTwo = new Flight(result_fid, result_dayOfMonth, result_carrierId, result_flightNum,
-                    result_originCity, result_destCity, result_time, result_capacity, result_price);
-              } catch (Exception e) {
-                conn.rollback();
-                conn.setAutoCommit(true);
-                return "Booking failed\n";
-              }
-            }
+  /**
+   * Searches for many (origin, destination, day) requests at once and returns
+   * each request's itineraries, in the same order and with the same rules as
+   * {@link #transaction_search(String, String, boolean, int, int)}.
+   *
+   * Requests are grouped by day. For each day, the flights leaving any of the
+   * day's origins or arriving at any of its destinations are read in one query,
+   * and every request of that day is answered from them in memory. This takes
+   * one query per distinct day instead of two per request. The session's
+   * itinerary list is not changed.
+   *
+   * Each request succeeds or fails on its own: a malformed request fails
+   * without being sent, and a query that fails only fails the requests it was
+   * read for, so the rest of the batch is still answered.
+   *
+   * @return for each request, in order, its itineraries or why it failed
+   */
+  public List<SearchResult> batchSearch(List<SearchRequest> requests) {
+    List<SearchResult> results = new ArrayList<>(Collections.nCopies(requests.size(), null));
+
+    // Each request adds up to two cities to the query, which must stay under
+    // SQL Server's limit of 2100 parameters
+    Map<Integer, List<List<Integer>>> byDay = new TreeMap<>();
+    for (int i = 0; i < requests.size(); i++) {
+      SearchRequest request = requests.get(i);
+      if (request.originCity == null || request.destinationCity == null || request.numberOfItineraries < 1) {
+        results.set(i, SearchResult.failed("Invalid search"));
+        continue;
+      }
+      List<List<Integer>> groups = byDay.computeIfAbsent(request.dayOfMonth, k -> new ArrayList<>());
+      if (groups.isEmpty() || groups.get(groups.size() - 1).size() == MAX_BATCH_GROUP) {
+        groups.add(new ArrayList<>());
+      }
+      groups.get(groups.size() - 1).add(i);
+    }
 
-            reservations.add(new Reservation(rid, flightOne, flightTwo, paid, cancelled));
+    readStatements = chooseReadStatements();
+    try {
+      for (Map.Entry<Integer, List<List<Integer>>> day : byDay.entrySet()) {
+        for (List<Integer> group : day.getValue()) {
+          Set<String> origins = new LinkedHashSet<>();
+          Set<String> destinations = new LinkedHashSet<>();
+          for (int i : group) {
+            origins.add(requests.get(i).originCity);
+            destinations.add(requests.get(i).destinationCity);
           }
-        } catch (Exception e) {
-          conn.rollback();
-          conn.setAutoCommit(true);
-          return "Booking failed\n";
-        }
 
-        for (Reservation r : reservations) {
-          if (r.flightOne.dayOfMonth == flights.get(0).dayOfMonth && !r.canceled) {
-            conn.rollback();
-            conn.setAutoCommit(true);
-            return "You cannot book two flights in the same day\n";
+          // Flights of the day by origin city, each list sorted by (actual_time, fid).
+          // Cities compare case-insensitively, as they do in the database.
+          List<Flight> dayFlights;
+          try {
+            dayFlights = getDayFlightsWithRetry(day.getKey(), origins, destinations);
+          } catch (SQLException e) {
+            for (int i : group) {
+              results.set(i, SearchResult.failed("Failed to search: " + e.getMessage()));
+            }
+            continue;
+          }
+          Map<String, List<Flight>> departures = new HashMap<>();
+          for (Flight f : dayFlights) {
+            departures.computeIfAbsent(f.originCity.toLowerCase(), k -> new ArrayList<>()).add(f);
+          }
+
+          for (int i : group) {
+            results.set(i, new SearchResult(searchInMemory(requests.get(i), departures), null));
           }
         }
+      }
+    } finally {
+      checkDanglingTransaction();
+    }
+    return results;
+  }
 
-        Map<Integer, Integer> flightCapacities = new HashMap<>();
-        try {
-          getAllFlightCapacities.clearParameters();
-          ResultSet rs = getAllFlightCapacities.executeQuery();
+  /**
+   * Reads the flights of one day for a batch search, on the primary again if
+   * the replica fails.
+   */
+  private List<Flight> getDayFlightsWithRetry(int dayOfMonth, Set<String> origins, Set<String> destinations)
+      throws SQLException {
+    try {
+      return getDayFlights(dayOfMonth, origins, destinations);
+    } catch (SQLException e) {
+      if (readStatements == statements) {
+        throw e;
+      }
+      ReplicaRouter.markFailed(e);
+      FlightEvents.retry();
+      readStatements = statements;
+      return getDayFlights(dayOfMonth, origins, destinations);
+    }
+  }
 
-          while (rs.next()) {
-            if (rs.getInt("fid1") != 0) {
-              flightCapacities.put(rs.getInt("fid1"), rs.getInt("count1"));
-            }
-            if (rs.getInt("fid2") != 0) {
-              flightCapacities.put(rs.getInt("fid2"), rs.getInt("count2"));
-            }
-          }
+  /**
+   * Reads the flights of one day that leave one of the origins or arrive at one
+   * of the destinations, sorted by (actual_time, fid).
+   */
+  private List<Flight> getDayFlights(int dayOfMonth, Set<String> origins, Set<String> destinations)
+      throws SQLException {
+    String sql = String.format(GET_DAY_FLIGHTS, String.join(", ", Collections.nCopies(origins.size(), "?")),
+        String.join(", ", Collections.nCopies(destinations.size(), "?")));
+    List<Flight> flights = new ArrayList<>();
+    try (PreparedStatement getDayFlightsStatement = readStatements.connection().prepareStatement(sql)) {
+      int i = 1;
+      getDayFlightsStatement.setInt(i++, dayOfMonth);
+      for (String origin : origins) {
+        getDayFlightsStatement.setString(i++, origin);
+      }
+      for (String destination : destinations) {
+        getDayFlightsStatement.setString(i++, destination);
+      }
+      try (ResultSet rs = getDayFlightsStatement.executeQuery()) {
+        while (rs.next()) {
+          flights.add(readFlight(rs, ""));
+        }
+      }
+    }
+    return flights;
+  }
 
-          for (Flight f : flights) {
-            if (flightCapacities.containsKey(f.fid)) {
-              if (flightCapacities.get(f.fid) + 1 > f.capacity) {
-                conn.rollback();
-                conn.setAutoCommit(true);
-                return "Booking failed\n";
-              }
-            }
-          }
-        } catch (Exception e) {
-          conn.rollback();
-          conn.setAutoCommit(true);
-          return "Booking failed\n";
+  /**
+   * Answers one batched request from the day's flights, grouped by origin city.
+   */
+  private static List<List<Flight>> searchInMemory(SearchRequest request, Map<String, List<Flight>> departures) {
+    int n = request.numberOfItineraries;
+    List<Flight> fromOrigin = departures.getOrDefault(request.originCity.toLowerCase(), Collections.emptyList());
+
+    List<Flight> direct = new ArrayList<>();
+    for (Flight f : fromOrigin) {
+      if (direct.size() < n && f.destCity.equalsIgnoreCase(request.destinationCity)) {
+        direct.add(f);
+      }
+    }
+    if (request.directFlight || direct.size() >= n) {
+      return merge(direct, Collections.emptyList());
+    }
+
+    List<List<Flight>> indirect = new ArrayList<>();
+    for (Flight first : fromOrigin) {
+      for (Flight second : departures.getOrDefault(first.destCity.toLowerCase(), Collections.emptyList())) {
+        if (second.destCity.equalsIgnoreCase(request.destinationCity)) {
+          indirect.add(Arrays.asList(first, second));
         }
+      }
+    }
+    indirect.sort(Comparator.<List<Flight>>comparingInt(it -> it.get(0).time + it.get(1).time)
+        .thenComparingInt(it -> it.get(0).fid).thenComparingInt(it -> it.get(1).fid));
+    return merge(direct, indirect.subList(0, Math.min(indirect.size(), n - direct.size())));
+  }
 
-        try {
-          getReservationIdStatement.clearParameters();
-          ResultSet counts = getReservationIdStatement.executeQuery();
-          counts.next();
+  /**
+   * Whether a direct flight is listed before a one-stop itinerary: shorter
+   * total time first, and on a tie the lower first fid.
+   */
+  private static boolean comesFirst(Flight direct, List<Flight> indirect) {
+    int indirectTime = indirect.get(0).time + indirect.get(1).time;
+    if (direct.time != indirectTime) {
+      return direct.time < indirectTime;
+    }
+    return direct.fid < indirect.get(0).fid;
+  }
 
-          id = counts.getInt("count") + 1;
-        } catch (SQLException e) {
-          conn.rollback();
-          conn.setAutoCommit(true);
-          return "Booking failed\n";
+  public List<Flight> getAllDirectFlights(String originCity, String destinationCity, int dayOfMonth,
+      int numberOfItineraries) {
+    return getAllDirectFlights(originCity, destinationCity, dayOfMonth, numberOfItineraries, false);
+  }
+
+  /**
+   * Returns up to the given number of direct flights, shortest first, skipping
+   * sold-out flights if {@code availableOnly} is true.
+   */
+  public List<Flight> getAllDirectFlights(String originCity, String destinationCity, int dayOfMonth,
+      int numberOfItineraries, boolean availableOnly) {
+    try {
+      return getDirectFlights(originCity, destinationCity, dayOfMonth, dayOfMonth, numberOfItineraries, availableOnly,
+          null);
+    } catch (SQLException e) {
+      e.getErrorCode();
+      return new ArrayList<>();
+    }
+  }
+
+  /**
+   * Returns up to the given number of direct flights between the given days
+   * that come after {@code after} in (actual_time, fid) order, or from the start
+   * if it is null.
+   */
+  private List<Flight> getDirectFlights(String originCity, String destinationCity, int firstDay, int lastDay,
+      int numberOfItineraries, boolean availableOnly, Flight after) throws SQLException {
+    // Each sold-out flight can push at most one flight out of the top rows, so
+    // this many more rows always leave enough after skipping them
+    int rows = availableOnly ? numberOfItineraries + FullFlights.count() : numberOfItineraries;
+
+    PreparedStatement getDirectFlightsStatement = readStatements
+        .prepare(after == null ? GET_DIRECT_FLIGHTS : GET_DIRECT_FLIGHTS_AFTER);
+    getDirectFlightsStatement.clearParameters();
+    getDirectFlightsStatement.setInt(1, rows);
+    getDirectFlightsStatement.setString(2, originCity);
+    getDirectFlightsStatement.setString(3, destinationCity);
+    getDirectFlightsStatement.setInt(4, firstDay);
+    getDirectFlightsStatement.setInt(5, lastDay);
+    if (after != null) {
+      getDirectFlightsStatement.setInt(6, after.time);
+      getDirectFlightsStatement.setInt(7, after.time);
+      getDirectFlightsStatement.setInt(8, after.fid);
+    }
+
+    List<Flight> list = new ArrayList<>();
+    try (ResultSet directFlights = getDirectFlightsStatement.executeQuery()) {
+      while (directFlights.next() && list.size() < numberOfItineraries) {
+        Flight flight = readFlight(directFlights, "");
+        if (availableOnly && FullFlights.isFull(flight.fid)) {
+          continue;
         }
+        list.add(flight);
+      }
+    }
+    return list;
+  }
 
-        try {
-          createReservationStatement.clearParameters();
-          createReservationStatement.setInt(1, id);
-          createReservationStatement.setString(2, user.username.toLowerCase());
-          createReservationStatement.setInt(3, flights.get(0).fid);
-          createReservationStatement.setInt(5, 0);
-          createReservationStatement.setInt(6, 0);
-
-          if (flights.size() == 2) {
-            createReservationStatement.setInt(4, flights.get(1).fid);
-          } else {
-            createReservationStatement.setNull(4, java.sql.Types.INTEGER);
+  /**
+   * Returns up to the given number of one-stop itineraries between the given
+   * days, shortest first, that come after {@code after} in (total time, first fid, second fid) order,
+   * or from the start if it is null. Itineraries with a sold-out flight are
+   * skipped if {@code availableOnly} is true.
+   *
+   * A sold-out flight can appear in any number of connections, so there is no
+   * fixed number of extra rows that is always enough. If too many rows had to
+   * be skipped, the query is run again for twice as many.
+   *
+   * With {@code flightapp.one_stop=true} the itineraries are read from the
+   * precomputed connections if they are complete for the route on every day of
+   * the range, and from the join otherwise.
+   */
+  private List<List<Flight>> getIndirectFlights(String originCity, String destinationCity, int firstDay,
+      int lastDay, int numberOfItineraries, boolean availableOnly, List<Flight> after) throws SQLException {
+    int rows = availableOnly ? numberOfItineraries + FullFlights.count() : numberOfItineraries;
+    boolean precomputed = OneStopConnections.enabled()
+        && OneStopConnections.isComplete(readStatements, originCity, destinationCity, firstDay, lastDay);
+    while (true) {
+      String sql;
+      if (precomputed) {
+        sql = after == null ? GET_PRECOMPUTED_INDIRECT_FLIGHTS : GET_PRECOMPUTED_INDIRECT_FLIGHTS_AFTER;
+      } else {
+        sql = after == null ? GET_INDIRECT_FLIGHTS : GET_INDIRECT_FLIGHTS_AFTER;
+      }
+      PreparedStatement getIndirectFlightsStatement = readStatements.prepare(sql);
+      getIndirectFlightsStatement.clearParameters();
+      getIndirectFlightsStatement.setInt(1, rows);
+      getIndirectFlightsStatement.setString(2, originCity);
+      getIndirectFlightsStatement.setString(3, destinationCity);
+      getIndirectFlightsStatement.setInt(4, firstDay);
+      getIndirectFlightsStatement.setInt(5, lastDay);
+      if (after != null) {
+        int time = after.get(0).time + after.get(1).time;
+        getIndirectFlightsStatement.setInt(6, time);
+        getIndirectFlightsStatement.setInt(7, time);
+        getIndirectFlightsStatement.setInt(8, after.get(0).fid);
+        getIndirectFlightsStatement.setInt(9, after.get(0).fid);
+        getIndirectFlightsStatement.setInt(10, after.get(1).fid);
+      }
+
+      List<List<Flight>> indirectFlightsList = new ArrayList<>();
+      int read = 0;
+      try (ResultSet indirectFlights = getIndirectFlightsStatement.executeQuery()) {
+        while (indirectFlights.next()) {
+          read++;
+          Flight flight1 = readFlight(indirectFlights, "F1_");
+          Flight flight2 = readFlight(indirectFlights, "F2_");
+          if (availableOnly && (FullFlights.isFull(flight1.fid) || FullFlights.isFull(flight2.fid))) {
+            continue;
+          }
+          if (indirectFlightsList.size() < numberOfItineraries) {
+            indirectFlightsList.add(Arrays.asList(flight1, flight2));
           }
+        }
+      }
 
-          createReservationStatement.execute();
-        } catch (SQLException e) {
-          conn.rollback();
-          conn.setAutoCommit(true);
-          if (e.getMessage().contains("deadlock")) {
-            return transaction_book(itineraryId);
+      if (indirectFlightsList.size() == numberOfItineraries) {
+        return indirectFlightsList;
+      }
+      if (read < rows) {
+        return indirectFlightsList;
+      }
+      rows *= 2;
+    }
+  }
+
+  /**
+   * Implements the book itinerary function.
+   *
+   * @param itineraryId ID of the itinerary to book. This must be one that is
+   *                    returned by search in the current session.
+   *
+   * @return If the user is not logged in, then return "Cannot book reservations,
+   *         not logged in\n". If the user is trying to book an itinerary with an
+   *         invalid ID or without having done a search, then return "No such
+   *         itinerary {@code itineraryId}\n". If the user already has a
+   *         reservation on the same day as the one that they are trying to book
+   *         now, then return "You cannot book two flights in the same day\n". For
+   *         all other errors, return "Booking failed\n".
+   *
+   *         And if booking succeeded, return "Booked flight(s), reservation ID:
+   *         [reservationId]\n" where reservationId is a unique number in the
+   *         reservation system that starts from 1 and increments by 1 each time a
+   *         successful reservation is made by any user in the system.
+   */
+  public String transaction_book(int itineraryId) {
+    try {
+      if (user == null) {
+        return "Cannot book reservations, not logged in\n";
+      }
+
+      if (totalFlightsList == null || itineraryId < 0 || itineraryId > totalFlightsList.size() - 1) {
+        return "No such itinerary " + itineraryId + "\n";
+      }
+
+      List<Flight> flights = totalFlightsList.get(itineraryId);
+
+      Lock lock = ReservationCache.lock(user.username);
+      try {
+        // Loading the list also fills in the user's booked days. The batches
+        // check the day again, so only a conflict needs the database's view: the
+        // reservation may have been cancelled by another instance.
+        cachedReservations();
+        if (ReservationCache.hasBookedDay(user.username, flights.get(0).dayOfMonth)) {
+          loadReservations(user.username);
+          if (ReservationCache.hasBookedDay(user.username, flights.get(0).dayOfMonth)) {
+            return "You cannot book two flights in the same day\n";
           }
-          return "Booking failed\n";
         }
-        conn.commit();
-        conn.setAutoCommit(true);
-      } catch (SQLException e) {
+
+        // The coordinator commits on one database, so it is not used with shards
+        if (Settings.getBoolean("flightapp.group_commit", false) && !ShardRouter.sharded()) {
+          return bookInGroup(flights);
+        }
+
+        SeatLockManager.Held seats = SeatLockManager.lock(flights);
         try {
-          conn.rollback();
-          conn.setAutoCommit(true);
-          if (e.getMessage().contains("deadlock")) {
-            return transaction_book(itineraryId);
-          }
-        } catch (SQLException e2) {
-          e2.printStackTrace();
+          return ShardRouter.sharded() ? bookOnShard(flights, 0) : bookFlights(flights, 0);
+        } finally {
+          seats.unlock();
         }
+      } catch (SQLException e) {
         return "Booking failed\n";
+      } finally {
+        lock.unlock();
       }
-      return "Booked flight(s), reservation ID: " + id + "\n";
     } finally {
       checkDanglingTransaction();
     }
   }
 
+  /**
+   * Books the given flights for the logged in user in a single round trip,
+   * after the cached same-day check has passed. The batch checks the same-day
+   * rule and capacity again before inserting. Callers hold the user's cache
+   * lock and the flights' seat locks.
+   *
+   * @param attempt deadlocks retried so far
+   */
+  private String bookFlights(List<Flight> flights, int attempt) {
+    int status;
+    int id;
+    int version;
+    try {
+      PreparedStatement bookStatement = statements.prepare(BOOK);
+      bookStatement.clearParameters();
+      bookStatement.setString(1, user.username.toLowerCase());
+      bookStatement.setInt(2, flights.get(0).fid);
+      if (flights.size() == 2) {
+        bookStatement.setInt(3, flights.get(1).fid);
+      } else {
+        bookStatement.setNull(3, java.sql.Types.INTEGER);
+      }
+
+      try (ResultSet rs = bookStatement.executeQuery()) {
+        rs.next();
+        status = rs.getInt("status");
+        id = rs.getInt("id");
+        version = status == 0 ? rs.getInt("version") : 0;
+        do {
+          if (rs.getInt("sold_out") == 1) {
+            FullFlights.markFull(rs.getInt("fid"));
+          }
+        } while (rs.next());
+      }
+    } catch (SQLException e) {
+      rollbackIfOpen(statements);
+      if (isDeadLock(e) && attempt < MAX_DEADLOCK_RETRIES) {
+        FlightEvents.retry();
+        return bookFlights(flights, attempt + 1);
+      }
+      return "Booking failed\n";
+    }
+
+    if (status == 1) {
+      // Booked by a session the cache did not hear about
+      ReservationCache.invalidate(user.username);
+      return "You cannot book two flights in the same day\n";
+    } else if (status != 0) {
+      return "Booking failed\n";
+    }
+
+    ReservationCache.update(user.username,
+        new Reservation(id, flights.get(0), flights.size() == 2 ? flights.get(1) : null, 0, 0), version);
+    TransactionJournal.book(user.username, id, flights.get(0).fid, flights.size() == 2 ? flights.get(1).fid : 0);
+    return "Booked flight(s), reservation ID: " + id + "\n";
+  }
+
+  /**
+   * Books the given flights for the logged in user when users are sharded:
+   * takes the seats and the reservation id on the home database, then inserts
+   * the reservation on the user's shard, giving the seats back if that fails.
+   * Callers hold the user's cache lock and the flights' seat locks.
+   *
+   * @param attempt deadlocks retried so far
+   */
+  private String bookOnShard(List<Flight> flights, int attempt) {
+    int fid2 = flights.size() == 2 ? flights.get(1).fid : 0;
+
+    int status;
+    int id;
+    try {
+      PreparedStatement holdSeatsStatement = statements.prepare(HOLD_SEATS);
+      holdSeatsStatement.clearParameters();
+      holdSeatsStatement.setInt(1, flights.get(0).fid);
+      if (fid2 != 0) {
+        holdSeatsStatement.setInt(2, fid2);
+      } else {
+        holdSeatsStatement.setNull(2, java.sql.Types.INTEGER);
+      }
+
+      try (ResultSet rs = holdSeatsStatement.executeQuery()) {
+        rs.next();
+        status = rs.getInt("status");
+        id = rs.getInt("id");
+        do {
+          if (rs.getInt("sold_out") == 1) {
+            FullFlights.markFull(rs.getInt("fid"));
+          }
+        } while (rs.next());
+      }
+    } catch (SQLException e) {
+      rollbackIfOpen(statements);
+      if (isDeadLock(e) && attempt < MAX_DEADLOCK_RETRIES) {
+        FlightEvents.retry();
+        return bookOnShard(flights, attempt + 1);
+      }
+      return "Booking failed\n";
+    }
+    if (status != 0) {
+      return "Booking failed\n";
+    }
+
+    int shardStatus;
+    int version = 0;
+    StatementCache userStatements = null;
+    try {
+      userStatements = statementsFor(user.username);
+      PreparedStatement bookStatement = userStatements.prepare(BOOK_ON_SHARD);
+      bookStatement.clearParameters();
+      bookStatement.setInt(1, id);
+      bookStatement.setString(2, user.username.toLowerCase());
+      bookStatement.setInt(3, flights.get(0).fid);
+      if (fid2 != 0) {
+        bookStatement.setInt(4, fid2);
+      } else {
+        bookStatement.setNull(4, java.sql.Types.INTEGER);
+      }
+      try (ResultSet rs = bookStatement.executeQuery()) {
+        rs.next();
+        shardStatus = rs.getInt("status");
+        if (shardStatus == 0) {
+          version = rs.getInt("version");
+        }
+      }
+    } catch (SQLException e) {
+      if (userStatements != null) {
+        rollbackIfOpen(userStatements);
+      }
+      shardStatus = -1;
+    }
+
+    if (shardStatus != 0) {
+      releaseSeats(id);
+      for (Flight f : flights) {
+        FullFlights.markAvailable(f.fid);
+      }
+      if (shardStatus == 1) {
+        // Booked by a session the cache did not hear about
+        ReservationCache.invalidate(user.username);
+        return "You cannot book two flights in the same day\n";
+      }
+      return "Booking failed\n";
+    }
+
+    ReservationCache.update(user.username,
+        new Reservation(id, flights.get(0), flights.size() == 2 ? flights.get(1) : null, 0, 0), version);
+    TransactionJournal.book(user.username, id, flights.get(0).fid, fid2);
+    return "Booked flight(s), reservation ID: " + id + "\n";
+  }
+
+  /**
+   * Gives back the seats a reservation holds in BOOKED_SEATS. A failure leaves
+   * them taken until {@link ShardRebalancer} recounts them.
+   */
+  private void releaseSeats(int reservationId) {
+    try {
+      PreparedStatement releaseSeatsStatement = statements.prepare(RELEASE_SEATS);
+      releaseSeatsStatement.clearParameters();
+      releaseSeatsStatement.setInt(1, reservationId);
+      releaseSeatsStatement.executeUpdate();
+    } catch (SQLException e) {
+      System.err.println("Failed to release the seats of reservation " + reservationId + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Hands the booking to the shared {@link BookingCoordinator}, which commits it
+   * together with the other bookings that arrive at about the same time.
+   */
+  private String bookInGroup(List<Flight> flights) {
+    try {
+      BookingCoordinator.Result result = BookingCoordinator.getInstance(connectionFactory).book(user.username, flights);
+      switch (result.outcome) {
+        case BOOKED:
+          ReservationCache.update(user.username, new Reservation(result.reservationId, flights.get(0),
+              flights.size() == 2 ? flights.get(1) : null, 0, 0), result.version);
+          TransactionJournal.book(user.username, result.reservationId, flights.get(0).fid,
+              flights.size() == 2 ? flights.get(1).fid : 0);
+          return "Booked flight(s), reservation ID: " + result.reservationId + "\n";
+        case SAME_DAY:
+          ReservationCache.invalidate(user.username);
+          return "You cannot book two flights in the same day\n";
+        case TIMED_OUT:
+          // It may still commit, so the cached list can no longer be trusted
+          ReservationCache.invalidate(user.username);
+          return "Booking failed\n";
+        default:
+          return "Booking failed\n";
+      }
+    } catch (Exception e) {
+      return "Booking failed\n";
+    }
+  }
+
   /**
    * Implements the pay function.
    *
@@ -771,109 +1542,57 @@ public class Query {
         return "Cannot pay, not logged in\n";
       }
 
-      int fid1 = 0;
-      int fid2 = 0;
-      int paid = 0;
+      Lock lock = ReservationCache.lock(user.username);
       try {
-        conn.setAutoCommit(false);
-        try {
-          getReservationsStatement.clearParameters();
-          getReservationsStatement.setString(1, user.username.toLowerCase());
-
-          ResultSet reservationsSet = getReservationsStatement.executeQuery();
-
-          boolean found = false;
-          while (reservationsSet.next()) {
-            if (reservationsSet.getInt("id") == reservationId && reservationsSet.getInt("cancelled") == 0) {
-              found = true;
-              fid1 = reservationsSet.getInt("flight1");
-              fid2 = reservationsSet.getInt("flight2");
-              paid = reservationsSet.getInt("paid");
-            }
-          }
-          if (!found || paid == 1) {
-            conn.rollback();
-            conn.setAutoCommit(true);
-            return "Cannot find unpaid reservation " + reservationId + " under user: " + user.username + "\n";
-          }
-
-        } catch (SQLException e) {
-          conn.rollback();
-          conn.setAutoCommit(true);
-          return "Failed to pay for reservation " + reservationId + "\n";
+        Reservation reservation = findReservation(reservationId);
+        if (reservation == null || reservation.paid) {
+          return "Cannot find unpaid reservation " + reservationId + " under user: " + user.username + "\n";
         }
 
-        int price1 = 0;
+        int status;
+        int balance;
+        int cost;
+        int version;
+        StatementCache userStatements = statementsFor(user.username);
         try {
-          getSingleFlightStatement.clearParameters();
-          getSingleFlightStatement.setInt(1, fid1);
-
-          ResultSet flight = getSingleFlightStatement.executeQuery();
-          flight.next();
-          price1 = flight.getInt("price");
+          PreparedStatement payStatement = userStatements.prepare(PAY);
+          payStatement.clearParameters();
+          payStatement.setInt(1, reservationId);
+          payStatement.setString(2, user.username.toLowerCase());
+
+          try (ResultSet rs = payStatement.executeQuery()) {
+            rs.next();
+            status = rs.getInt("status");
+            balance = rs.getInt("balance");
+            cost = rs.getInt("cost");
+            version = status == 0 ? rs.getInt("version") : 0;
+          }
         } catch (SQLException e) {
-          conn.rollback();
-          conn.setAutoCommit(true);
+          rollbackIfOpen(userStatements);
+          ReservationCache.invalidate(user.username);
           return "Failed to pay for reservation " + reservationId + "\n";
         }
 
-        int price2 = 0;
-        if (fid2 != 0) {
-          try {
-            getSingleFlightStatement.clearParameters();
-            getSingleFlightStatement.setInt(1, fid2);
-
-            ResultSet flight = getSingleFlightStatement.executeQuery();
-            flight.next();
-            price2 = flight.getInt("price");
-          } catch (SQLException e) {
-            conn.rollback();
-            conn.setAutoCommit(true);
-            return "Failed to pay for reservation " + reservationId + "\n";
-          }
+        if (status == 1) {
+          // Paid or cancelled by a session the cache did not hear about
+          ReservationCache.invalidate(user.username);
+          return "Cannot find unpaid reservation " + reservationId + " under user: " + user.username + "\n";
         }
 
-        if (user.balance < price1 + price2) {
-          conn.rollback();
-          conn.setAutoCommit(true);
-          return "User has only " + user.balance + " in account but itinerary costs " + (price1 + price2) + "\n";
+        user.balance = balance;
+        if (status == 2) {
+          return "User has only " + balance + " in account but itinerary costs " + cost + "\n";
         }
 
-        try {
-          payReservationStatement.clearParameters();
-          payReservationStatement.setInt(1, reservationId);
-
-          payReservationStatement.executeUpdate();
-        } catch (SQLException e) {
-          conn.rollback();
-          conn.setAutoCommit(true);
-          return "Failed to pay for reservation " + reservationId + "\n";
-        }
-
-        user.balance -= (price1 + price2);
-        try {
-          updateBalanceStatement.clearParameters();
-          updateBalanceStatement.setInt(1, user.balance);
-          updateBalanceStatement.setString(2, user.username);
-
-          updateBalanceStatement.executeUpdate();
-        } catch (SQLException e) {
-          conn.rollback();
-          conn.setAutoCommit(true);
-          return "Failed to pay for reservation " + reservationId + "\n";
-        }
-        conn.commit();
-        conn.setAutoCommit(true);
+        ReservationCache.update(user.username,
+            new Reservation(reservationId, reservation.flightOne, reservation.flightTwo, 1, 0), version);
+        TransactionJournal.pay(user.username, reservationId, cost, balance);
+        return "Paid reservation: " + reservationId + " remaining balance: " + balance + "\n";
       } catch (SQLException e) {
-        try {
-          conn.rollback();
-          conn.setAutoCommit(true);
-        } catch (SQLException e2) {
-          e2.printStackTrace();
-        }
         return "Failed to pay for reservation " + reservationId + "\n";
+      } finally {
+        lock.unlock();
       }
-      return "Paid reservation: " + reservationId + " remaining balance: " + user.balance + "\n";
     } finally {
       checkDanglingTransaction();
     }
@@ -905,98 +1624,26 @@ public class Query {
         return "Cannot view reservations, not logged in\n";
       }
 
-      StringBuffer sb = new StringBuffer();
-      try {
-        conn.setAutoCommit(false);
+      List<Reservation> reservations = ReservationCache.get(user.username);
+      if (reservations == null) {
+        Lock lock = ReservationCache.lock(user.username);
         try {
-          getReservationsStatement.clearParameters();
-          getReservationsStatement.setString(1, user.username.toLowerCase());
-
-          ResultSet reservations = getReservationsStatement.executeQuery();
-          if (!reservations.next()) {
-            conn.rollback();
-            conn.setAutoCommit(true);
-            return "No reservations found\n";
-          }
-
-          do {
-            int reservationId = reservations.getInt("id");
-
-            int fid1 = reservations.getInt("flight1");
-            int fid2 = reservations.getInt("flight2");
-            int paid = reservations.getInt("paid");
-            int cancelled = reservations.getInt("cancelled");
-
-            if (cancelled == 0) {
-              Flight flight1 = null;
-              try {
-                getSingleFlightStatement.clearParameters();
-                getSingleFlightStatement.setInt(1, fid1);
-
-                ResultSet flight = getSingleFlightStatement.executeQuery();
-                flight.next();
-
-                int dayOfMonth = flight.getInt("day_of_month");
-                String carrierId = flight.getString("carrier_id");
-                String flightNum = flight.getString("flight_num");
-                String originCity = flight.getString("origin_city");
-                String destCity = flight.getString("dest_city");
-                int time = flight.getInt("actual_time");
-                int capacity = flight.getInt("capacity");
-                int price = flight.getInt("price");
-                flight1 = new Flight(fid1, dayOfMonth, carrierId, flightNum, originCity, destCity, time, capacity,
-                    price);
-              } catch (SQLException e) {
-                conn.rollback();
-                conn.setAutoCommit(true);
-                return "Failed to retrieve reservations\n";
-              }
-
-              Flight flight2 = null;
-              if (fid2 != 0) {
-                try {
-                  getSingleFlightStatement.clearParameters();
-                  getSingleFlightStatement.setInt(1, fid2);
-
-                  ResultSet flight = getSingleFlightStatement.executeQuery();
-                  flight.next();
-
-                  int dayOfMonth = flight.getInt("day_of_month");
-                  String carrierId = flight.getString("carrier_id");
-                  String flightNum = flight.getString("flight_num");
-                  String originCity = flight.getString("origin_city");
-                  String destCity = flight.getString("dest_city");
-                  int time = flight.getInt("actual_time");
-                  int capacity = flight.getInt("capacity");
-                  int price = flight.getInt("price");
-                  flight2 = new Flight(fid2, dayOfMonth, carrierId, flightNum, originCity, destCity, time, capacity,
-                      price);
-                } catch (SQLException e) {
-                  conn.rollback();
-                  conn.setAutoCommit(true);
-                  return "Failed to retrieve reservations\n";
-                }
-              }
-
-              sb.append(new Reservation(reservationId, flight1, flight2, paid, cancelled));
-            }
-          } while (reservations.next());
+          reservations = cachedReservations();
         } catch (SQLException e) {
-          conn.rollback();
-          conn.setAutoCommit(true);
-          return "Failed to retrieve reservations\n";
-        }
-        conn.commit();
-        conn.setAutoCommit(true);
-      } catch (SQLException e) {
-        try {
-          conn.rollback();
-          conn.setAutoCommit(true);
           return "Failed to retrieve reservations\n";
-        } catch (SQLException e2) {
-          e2.getErrorCode();
+        } finally {
+          lock.unlock();
         }
       }
+
+      if (reservations.isEmpty()) {
+        return "No reservations found\n";
+      }
+
+      StringBuilder sb = new StringBuilder();
+      for (Reservation r : reservations) {
+        sb.append(r);
+      }
       return sb.toString();
     } finally {
       checkDanglingTransaction();
@@ -1023,172 +1670,141 @@ public class Query {
         return "Cannot cancel reservations, not logged in\n";
       }
 
+      Lock lock = ReservationCache.lock(user.username);
       try {
-        conn.setAutoCommit(false);
-        try {
-          getReservationsStatement.clearParameters();
-          getReservationsStatement.setString(1, user.username.toLowerCase());
-
-          ResultSet reservations = getReservationsStatement.executeQuery();
-          if (!reservations.next()) {
-            conn.rollback();
-            conn.setAutoCommit(true);
-            return "Failed to cancel reservation " + reservationId + "\n";
-          }
-
-          List<Reservation> reservationList = new ArrayList<>();
-          do {
-            int rid = reservations.getInt("id");
-            int fid1 = reservations.getInt("flight1");
-            int fid2 = reservations.getInt("flight2");
-            int paid = reservations.getInt("paid");
-            int cancelled = reservations.getInt("cancelled");
-
-            Flight flight1 = null;
-            try {
-              getSingleFlightStatement.clearParameters();
-              getSingleFlightStatement.setInt(1, fid1);
-
-              ResultSet flight = getSingleFlightStatement.executeQuery();
-              flight.next();
-
-              int dayOfMonth = flight.getInt("day_of_month");
-              String carrierId = flight.getString("carrier_id");
-              String flightNum = flight.getString("flight_num");
-              String originCity = flight.getString("origin_city");
-              String destCity = flight.getString("dest_city");
-              int time = flight.getInt("actual_time");
-              int capacity = flight.getInt("capacity");
-              int price = flight.getInt("price");
-              flight1 = new Flight(fid1, dayOfMonth, carrierId, flightNum, originCity, destCity, time, capacity, price);
-            } catch (SQLException e) {
-              conn.rollback();
-              conn.setAutoCommit(true);
-              return "Failed to cancel reservation " + reservationId + "\n";
-            }
-
-            Flight flight2 = null;
-            if (fid2 != 0) {
-              try {
-                getSingleFlightStatement.clearParameters();
-                getSingleFlightStatement.setInt(1, fid2);
-
-                ResultSet flight = getSingleFlightStatement.executeQuery();
-                flight.next();
-
-                int dayOfMonth = flight.getInt("day_of_month");
-                String carrierId = flight.getString("carrier_id");
-                String flightNum = flight.getString("flight_num");
-                String originCity = flight.getString("origin_city");
-                String destCity = flight.getString("dest_city");
-                int time = flight.getInt("actual_time");
-                int capacity = flight.getInt("capacity");
-                int price = flight.getInt("price");
-                flight2 = new Flight(fid2, dayOfMonth, carrierId, flightNum, originCity, destCity, time, capacity,
-                    price);
-              } catch (SQLException e) {
-                conn.rollback();
-                conn.setAutoCommit(true);
-                return "Failed to cancel reservation " + reservationId + "\n";
-              }
-            }
-            reservationList.add(new Reservation(rid, flight1, flight2, paid, cancelled));
-          } while (reservations.next());
-
-          boolean found = false;
-          Reservation deleted = null;
-          for (Reservation r : reservationList) {
-            if (r.id == reservationId && !r.canceled) {
-              found = true;
-              deleted = r;
-            }
-          }
-          if (!found) {
-            conn.rollback();
-            conn.setAutoCommit(true);
-            return "Failed to cancel reservation " + reservationId + "\n";
-          }
-
-          if (deleted.paid) {
-            int price1 = 0;
-            try {
-              getSingleFlightStatement.clearParameters();
-              getSingleFlightStatement.setInt(1, deleted.flightOne.fid);
-
-              ResultSet flight = getSingleFlightStatement.executeQuery();
-              flight.next();
-              price1 = flight.getInt("price");
-            } catch (SQLException e) {
-              conn.rollback();
-              conn.setAutoCommit(true);
-              return "Failed to cancel reservation " + reservationId + "\n";
-            }
-
-            int price2 = 0;
-            if (deleted.flightTwo != null) {
-              try {
-                getSingleFlightStatement.clearParameters();
-                getSingleFlightStatement.setInt(1, deleted.flightTwo.fid);
-
-                ResultSet flight = getSingleFlightStatement.executeQuery();
-                flight.next();
-                price2 = flight.getInt("price");
-              } catch (SQLException e) {
-                conn.rollback();
-                conn.setAutoCommit(true);
-                return "Failed to cancel reservation " + reservationId + "\n";
-              }
-            }
-            user.balance += price1 + price2;
-          }
-
-          try {
-            updateBalanceStatement.clearParameters();
-            updateBalanceStatement.setInt(1, user.balance);
-            updateBalanceStatement.setString(2, user.username.toLowerCase());
-            updateBalanceStatement.executeUpdate();
-          } catch (SQLException e) {
-            conn.rollback();
-            conn.setAutoCommit(true);
-            return "Failed to cancel reservation " + reservationId + "\n";
-          }
+        Reservation reservation = findReservation(reservationId);
+        if (reservation == null) {
+          return "Failed to cancel reservation " + reservationId + "\n";
+        }
 
-          try {
-            cancelReservationStatement.clearParameters();
-            cancelReservationStatement.setInt(1, reservationId);
-            cancelReservationStatement.executeUpdate();
-          } catch (SQLException e) {
-            conn.rollback();
-            conn.setAutoCommit(true);
-            return "Failed to cancel reservation " + reservationId + "\n";
+        int status;
+        int balance;
+        int version;
+        StatementCache userStatements = statementsFor(user.username);
+        try {
+          PreparedStatement cancelStatement = userStatements.prepare(CANCEL);
+          cancelStatement.clearParameters();
+          cancelStatement.setInt(1, reservationId);
+          cancelStatement.setString(2, user.username.toLowerCase());
+
+          try (ResultSet rs = cancelStatement.executeQuery()) {
+            rs.next();
+            status = rs.getInt("status");
+            balance = rs.getInt("balance");
+            version = status == 0 ? rs.getInt("version") : 0;
           }
-
-          conn.commit();
-          conn.setAutoCommit(true);
         } catch (SQLException e) {
-          conn.rollback();
-          conn.setAutoCommit(true);
+          rollbackIfOpen(userStatements);
+          ReservationCache.invalidate(user.username);
           return "Failed to cancel reservation " + reservationId + "\n";
         }
-      } catch (SQLException e) {
-        try {
-          conn.rollback();
-          conn.setAutoCommit(true);
-        } catch (SQLException e2) {
-          e2.getErrorCode();
+
+        if (status != 0) {
+          // Cancelled by a session the cache did not hear about
+          ReservationCache.invalidate(user.username);
+          return "Failed to cancel reservation " + reservationId + "\n";
+        }
+
+        user.balance = balance;
+        if (ShardRouter.sharded()) {
+          releaseSeats(reservationId);
+        }
+        FullFlights.markAvailable(reservation.flightOne.fid);
+        if (reservation.flightTwo != null) {
+          FullFlights.markAvailable(reservation.flightTwo.fid);
         }
-        e.getSQLState();
+        ReservationCache.remove(user.username, reservationId, version);
+        TransactionJournal.cancel(user.username, reservationId, balance);
+        return "Canceled reservation " + reservationId + "\n";
+      } catch (SQLException e) {
+        return "Failed to cancel reservation " + reservationId + "\n";
+      } finally {
+        lock.unlock();
       }
-      return "Canceled reservation " + reservationId + "\n";
     } finally {
       checkDanglingTransaction();
     }
   }
 
+  /**
+   * Returns the logged in user's active reservations, loading them into the
+   * {@link ReservationCache} if they are not cached. Callers hold the user's
+   * cache lock.
+   */
+  private List<Reservation> cachedReservations() throws SQLException {
+    List<Reservation> reservations = ReservationCache.get(user.username);
+    if (reservations == null) {
+      reservations = loadReservations(user.username);
+    }
+    return reservations;
+  }
+
+  /**
+   * Returns the logged in user's active reservation with the given id, or null.
+   * A reservation missing from a cached list may have been booked by another
+   * instance, so the list is read again before giving up. Callers hold the
+   * user's cache lock.
+   */
+  private Reservation findReservation(int reservationId) throws SQLException {
+    boolean cached = ReservationCache.get(user.username) != null;
+    for (Reservation r : cachedReservations()) {
+      if (r.id == reservationId) {
+        return r;
+      }
+    }
+    if (cached) {
+      for (Reservation r : loadReservations(user.username)) {
+        if (r.id == reservationId) {
+          return r;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Reads the user's active reservations and their flights in one query and
+   * puts them in the {@link ReservationCache}.
+   */
+  private List<Reservation> loadReservations(String username) throws SQLException {
+    List<Reservation> reservations = new ArrayList<>();
+    int version = 0;
+    PreparedStatement getReservationsStatement = statementsFor(username).prepare(GET_RESERVATIONS);
+    getReservationsStatement.clearParameters();
+    getReservationsStatement.setString(1, username.toLowerCase());
+    try (ResultSet rs = getReservationsStatement.executeQuery()) {
+      while (rs.next()) {
+        version = rs.getInt("reservations_version");
+        // Reservation ids start from 1, so 0 is the NULL of a user without any
+        if (rs.getInt("id") == 0) {
+          continue;
+        }
+        Flight flight1 = readFlight(rs, "F1_");
+        // flight2 is NULL for direct itineraries, which reads back as 0
+        Flight flight2 = rs.getInt("F2_fid") != 0 ? readFlight(rs, "F2_") : null;
+        reservations.add(new Reservation(rs.getInt("id"), flight1, flight2, rs.getInt("paid"), 0));
+      }
+    }
+    ReservationCache.put(username, reservations, version);
+    return ReservationCache.get(username);
+  }
+
+  /**
+   * Reads a flight from the current row, with every column name starting with
+   * the given prefix.
+   */
+  private static Flight readFlight(ResultSet rs, String prefix) throws SQLException {
+    return new Flight(rs.getInt(prefix + "fid"), rs.getInt(prefix + "day_of_month"),
+        rs.getString(prefix + "carrier_id"), rs.getString(prefix + "flight_num"), rs.getString(prefix + "origin_city"),
+        rs.getString(prefix + "dest_city"), rs.getInt(prefix + "actual_time"), rs.getInt(prefix + "capacity"),
+        rs.getInt(prefix + "price"));
+  }
+
   /**
    * Example utility function that uses prepared statements
    */
   private int checkFlightCapacity(int fid) throws SQLException {
+    PreparedStatement checkFlightCapacityStatement = statements.prepare(CHECK_FLIGHT_CAPACITY);
     checkFlightCapacityStatement.clearParameters();
     checkFlightCapacityStatement.setInt(1, fid);
     ResultSet results = checkFlightCapacityStatement.executeQuery();
@@ -1205,6 +1821,7 @@ public class Query {
    */
   private void checkDanglingTransaction() {
     try {
+      PreparedStatement tranCountStatement = statements.prepare(TRANCOUNT_SQL);
       try (ResultSet rs = tranCountStatement.executeQuery()) {
         rs.next();
         int count = rs.getInt("tran_count");
@@ -1220,6 +1837,18 @@ public class Query {
     }
   }
 
+  /**
+   * Rolls back a batch transaction left open by a failed round trip.
+   */
+  private void rollbackIfOpen(StatementCache statements) {
+    try {
+      PreparedStatement rollbackIfOpenStatement = statements.prepare(ROLLBACK_IF_OPEN);
+      rollbackIfOpenStatement.execute();
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+
   private static boolean isDeadLock(SQLException ex) {
     return ex.getErrorCode() == 1205;
   }
@@ -1227,7 +1856,7 @@ public class Query {
   /**
    * A class to store flight information.
    */
-  class Flight {
+  static class Flight {
     public int fid;
     public int dayOfMonth;
     public String carrierId;
@@ -1259,9 +1888,100 @@ public class Query {
     }
   }
 
+  /**
+   * One search of a {@link Query#batchSearch(List)}.
+   */
+  static class SearchRequest {
+    public final String originCity;
+    public final String destinationCity;
+    public final boolean directFlight;
+    public final int dayOfMonth;
+    public final int numberOfItineraries;
+
+    public SearchRequest(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+        int numberOfItineraries) {
+      this.originCity = originCity;
+      this.destinationCity = destinationCity;
+      this.directFlight = directFlight;
+      this.dayOfMonth = dayOfMonth;
+      this.numberOfItineraries = numberOfItineraries;
+    }
+  }
+
+  /**
+   * The outcome of one search of a {@link Query#batchSearch(List)}.
+   */
+  static class SearchResult {
+    // Empty if the search failed
+    public final List<List<Flight>> itineraries;
+    // Why the search failed, or null if it succeeded
+    public final String error;
+
+    SearchResult(List<List<Flight>> itineraries, String error) {
+      this.itineraries = itineraries;
+      this.error = error;
+    }
+
+    static SearchResult failed(String error) {
+      return new SearchResult(Collections.emptyList(), error);
+    }
+  }
+
+  /**
+   * A search and how far it has been listed. The last itinerary of each kind
+   * is the keyset the next page starts after.
+   */
+  private static class SearchCursor {
+    final String originCity;
+    final String destinationCity;
+    final boolean directFlight;
+    final int firstDay;
+    final int lastDay;
+    final int pageSize;
+    final boolean availableOnly;
+    final ItineraryRanker.Ranking ranking;
+
+    Flight lastDirect;
+    List<Flight> lastIndirect;
+    boolean directDone;
+    boolean indirectDone;
+
+    // Flights a ranked search builds its itineraries from, read on its first page
+    List<Flight> legs;
+
+    SearchCursor(String originCity, String destinationCity, boolean directFlight, int firstDay, int lastDay,
+        int pageSize, boolean availableOnly, ItineraryRanker.Ranking ranking) {
+      this.originCity = originCity;
+      this.destinationCity = destinationCity;
+      this.directFlight = directFlight;
+      this.firstDay = firstDay;
+      this.lastDay = lastDay;
+      this.pageSize = pageSize;
+      this.availableOnly = availableOnly;
+      this.ranking = ranking;
+    }
+
+    boolean exhausted() {
+      return directDone && (directFlight || indirectDone);
+    }
+
+    SearchCursor copy() {
+      SearchCursor copy = new SearchCursor(originCity, destinationCity, directFlight, firstDay, lastDay, pageSize,
+          availableOnly, ranking);
+      copy.lastDirect = lastDirect;
+      copy.lastIndirect = lastIndirect;
+      copy.directDone = directDone;
+      copy.indirectDone = indirectDone;
+      copy.legs = legs;
+      return copy;
+    }
+  }
+
   class User {
     public String username;
     public int balance;
+    // Tokens issued with an older version have been revoked
+    public int tokenVersion;
 
     public User(String username, int balance) {
       this.username = username;
@@ -1274,7 +1994,7 @@ public class Query {
     }
   }
 
-  class Reservation {
+  static class Reservation {
     public int id;
     public Flight flightOne;
     public Flight flightTwo;
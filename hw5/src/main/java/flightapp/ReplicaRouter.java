@@ -0,0 +1,141 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Decides whether searches can read flights from a read-only replica of the
+ * primary database instead of the primary itself.
+ *
+ * The replica is configured with {@code flightapp.replica.server_url},
+ * {@code .database_name}, {@code .username} and {@code .password}, each
+ * defaulting to the primary's; setting either of the first two enables it.
+ * Writes, capacity checks and everything scoped to a user always go to the
+ * primary.
+ *
+ * Replication lag is measured with a heartbeat: a background thread writes the
+ * current time into REPLICA_HEARTBEAT on the primary every quarter of
+ * {@code flightapp.replica.max_lag_ms} (default 5000) and reads it back from
+ * the replica. Since both times come from this JVM's clock, the difference is
+ * how far behind the replica is, give or take one heartbeat. Searches use the
+ * replica only while that is within the bound; when it is not, when the
+ * replica cannot be reached, or when a search on it fails, they read from the
+ * primary until the next heartbeat finds the replica current again.
+ */
+public class ReplicaRouter {
+  private static final String WRITE_HEARTBEAT = "UPDATE REPLICA_HEARTBEAT SET beat_at = ? WHERE id = 1; "
+      + "IF @@ROWCOUNT = 0 INSERT INTO REPLICA_HEARTBEAT (id, beat_at) VALUES (1, ?)";
+
+  private static final String READ_HEARTBEAT = "SELECT beat_at FROM REPLICA_HEARTBEAT WHERE id = 1";
+
+  private static volatile ScheduledExecutorService checker;
+  private static final Lock checkerLock = new ReentrantLock();
+
+  // Lag seen by the last heartbeat, or -1 if the replica could not be read
+  private static volatile long lagMillis = -1;
+
+  public static boolean enabled() {
+    return Settings.get("flightapp.replica.server_url", null) != null
+        || Settings.get("flightapp.replica.database_name", null) != null;
+  }
+
+  /**
+   * Whether searches should read from the replica right now. The first call
+   * starts the heartbeat, so the replica is used from its first check on.
+   */
+  public static boolean usable() {
+    if (!enabled()) {
+      return false;
+    }
+    start();
+    return lagMillis >= 0 && lagMillis <= maxLagMillis();
+  }
+
+  /**
+   * Stops using the replica until the next heartbeat reads it successfully.
+   */
+  public static void markFailed(SQLException e) {
+    lagMillis = -1;
+    System.err.println("Replica read failed, searching on the primary: " + e.getMessage());
+  }
+
+  /**
+   * Opens connections to the replica.
+   */
+  public static ConnectionFactory factory() {
+    String serverURL = Settings.get("flightapp.replica.server_url", Settings.get("flightapp.server_url", null));
+    String dbName = Settings.get("flightapp.replica.database_name", Settings.get("flightapp.database_name", null));
+    String adminName = Settings.get("flightapp.replica.username", Settings.get("flightapp.username", null));
+    String password = Settings.get("flightapp.replica.password", Settings.get("flightapp.password", null));
+    return () -> {
+      Connection conn = Query.openConnectionFromCredential(serverURL, dbName, adminName, password);
+      conn.setReadOnly(true);
+      // Searches only read committed flights, so they need no range locks on a
+      // database that replication is writing to
+      conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+      return conn;
+    };
+  }
+
+  private static long maxLagMillis() {
+    return Settings.getLong("flightapp.replica.max_lag_ms", 5000);
+  }
+
+  private static void start() {
+    if (checker != null) {
+      return;
+    }
+
+    checkerLock.lock();
+    try {
+      if (checker != null) {
+        return;
+      }
+      checker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "replica-heartbeat");
+        t.setDaemon(true);
+        return t;
+      });
+      ConnectionFactory replicaFactory = factory();
+      long interval = Math.max(1, maxLagMillis() / 4);
+      checker.scheduleWithFixedDelay(new Runnable() {
+        Connection primary;
+        Connection replica;
+
+        @Override
+        public void run() {
+          try {
+            if (primary == null || primary.isClosed()) {
+              primary = Query.openConnectionFromDbConn();
+            }
+            try (PreparedStatement write = primary.prepareStatement(WRITE_HEARTBEAT)) {
+              long now = System.currentTimeMillis();
+              write.setLong(1, now);
+              write.setLong(2, now);
+              write.execute();
+            }
+          } catch (SQLException | IOException e) {
+            System.err.println("Failed to write the replica heartbeat: " + e.getMessage());
+            primary = null;
+          }
+
+          try {
+            if (replica == null || replica.isClosed()) {
+              replica = replicaFactory.open();
+            }
+            try (Statement read = replica.createStatement(); ResultSet rs = read.executeQuery(READ_HEARTBEAT)) {
+              lagMillis = rs.next() ? Math.max(0, System.currentTimeMillis() - rs.getLong("beat_at")) : -1;
+            }
+          } catch (SQLException | IOException e) {
+            lagMillis = -1;
+            replica = null;
+          }
+        }
+      }, 0, interval, TimeUnit.MILLISECONDS);
+    } finally {
+      checkerLock.unlock();
+    }
+  }
+}
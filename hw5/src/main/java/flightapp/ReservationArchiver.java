@@ -0,0 +1,106 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Moves cancelled reservations out of RESERVATIONS into RESERVATIONS_HISTORY,
+ * so that the queries on live reservations do not read past them.
+ *
+ * Each batch is a single DELETE of at most
+ * {@code flightapp.archive.batch_size} (default 500) rows that outputs them
+ * into the history table, so a row is in exactly one of the two tables at any
+ * time and ids stay unique across both (new ids are taken after the largest in
+ * either). Batches are small enough that SQL Server never escalates to a table
+ * lock, run at read committed, and skip rows a live transaction has locked
+ * instead of waiting for them.
+ *
+ * Only cancelled reservations are archived: live ones, past or not, still
+ * hold seats and a day in the user's booked days, and the capacity and
+ * same-day checks only read RESERVATIONS. Cancelled reservations are not
+ * cached and hold neither, so moving them changes no cache and no count.
+ *
+ * With {@code flightapp.archive.interval_ms} set, sessions archive in the
+ * background at that interval, on every shard when users are sharded (see
+ * {@link ShardRouter}). Running this class archives once:
+ *
+ * {@code mvn compile exec:java -Dexec.mainClass=flightapp.ReservationArchiver}
+ */
+public class ReservationArchiver {
+  private static final String ARCHIVE_BATCH = "DELETE TOP (?) FROM RESERVATIONS WITH (READPAST) "
+      + "OUTPUT deleted.id, deleted.userid, deleted.flight1, deleted.flight2, deleted.paid, deleted.cancelled "
+      + "INTO RESERVATIONS_HISTORY (id, userid, flight1, flight2, paid, cancelled) "
+      + "WHERE cancelled = 1";
+
+  private static volatile ScheduledExecutorService archiver;
+  private static final Lock archiverLock = new ReentrantLock();
+
+  /**
+   * Starts archiving in the background with connections from the given
+   * factory, if enabled and not already started.
+   */
+  public static void start(ConnectionFactory factory) {
+    long intervalMillis = Settings.getLong("flightapp.archive.interval_ms", 0);
+    if (intervalMillis <= 0 || archiver != null) {
+      return;
+    }
+
+    archiverLock.lock();
+    try {
+      if (archiver != null) {
+        return;
+      }
+      archiver = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "reservation-archiver");
+        t.setDaemon(true);
+        return t;
+      });
+      archiver.scheduleWithFixedDelay(() -> {
+        for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+          try (Connection conn = shard == 0 ? factory.open() : ShardRouter.factory(shard).open()) {
+            archive(conn);
+          } catch (SQLException | IOException e) {
+            System.err.println("Failed to archive reservations on shard " + shard + ": " + e.getMessage());
+          }
+        }
+      }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    } finally {
+      archiverLock.unlock();
+    }
+  }
+
+  /**
+   * Archives batches until one comes up short.
+   *
+   * @return the number of reservations archived
+   */
+  public static int archive(Connection conn) throws SQLException {
+    int batchSize = Settings.getInt("flightapp.archive.batch_size", 500);
+    conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+    int archived = 0;
+    try (PreparedStatement archiveBatch = conn.prepareStatement(ARCHIVE_BATCH)) {
+      while (true) {
+        archiveBatch.setInt(1, batchSize);
+        int moved = archiveBatch.executeUpdate();
+
+        archived += moved;
+        if (moved < batchSize) {
+          return archived;
+        }
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int archived = 0;
+    for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+      try (Connection conn = ShardRouter.factory(shard).open()) {
+        archived += archive(conn);
+      }
+    }
+    System.out.println("Archived " + archived + " reservation(s)");
+  }
+}
@@ -0,0 +1,236 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Per-user cache of active (not cancelled) reservations, shared by all
+ * sessions in this JVM.
+ *
+ * A user's list is loaded on login and then kept up to date in place by book,
+ * pay and cancel, so reservations and pay do not have to go back to the
+ * database. Writers hold the user's lock from the moment they read the cached
+ * list until the database write has committed and the list has been updated,
+ * so two sessions of the same user never act on the same stale list. Lists
+ * are copy-on-write and can be read without the lock.
+ *
+ * Sessions in other processes can still change a user's reservations. Every
+ * book, pay and cancel raises reservations_version on the user's row in USERS
+ * and returns the new version, and a list is cached with the version it was
+ * read at. A write whose version is not one past the cached one was preceded
+ * by a write the cache did not hear about, and login and resume compare the
+ * version they read with the user's row, so in both cases the list is read
+ * again. Pay and cancel also only update rows that are still in the state the
+ * cache claims, and a mismatch or any failed write invalidates the user's
+ * entry so the next access reloads it.
+ *
+ * At most {@code flightapp.reservation_cache.max_users} users (default 10000)
+ * are kept; past that the least recently used entries that no writer holds
+ * are dropped.
+ */
+public class ReservationCache {
+  private static final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+  private static final int MAX_USERS = Settings.getInt("flightapp.reservation_cache.max_users", 10000);
+
+  private static volatile int maxUsers = MAX_USERS;
+
+  // Held by the thread dropping entries
+  private static final Lock evictLock = new ReentrantLock();
+
+  private static class Entry {
+    final ReentrantLock lock = new ReentrantLock();
+    // Sorted by reservation id, null when not loaded
+    volatile List<Query.Reservation> reservations;
+    // Bit day - 1 is set for each day with a reservation, as of the last list
+    volatile int bookedDays;
+    // reservations_version of the user's row the list is current with
+    volatile int version;
+    volatile long lastUsed;
+  }
+
+  private static Entry entry(String username) {
+    Entry entry = entries.computeIfAbsent(username.toLowerCase(), k -> new Entry());
+    entry.lastUsed = System.nanoTime();
+    if (entries.size() > maxUsers) {
+      evict();
+    }
+    return entry;
+  }
+
+  /**
+   * Keeps at most the given number of users from now on, or the configured
+   * number again if 0.
+   */
+  static void setMaxUsers(int max) {
+    maxUsers = max > 0 ? max : MAX_USERS;
+  }
+
+  /**
+   * Takes the lock that writers must hold while reading and updating the
+   * user's list, and returns it to be unlocked.
+   */
+  public static Lock lock(String username) {
+    String key = username.toLowerCase();
+    while (true) {
+      Entry entry = entry(key);
+      entry.lock.lock();
+      // The entry may have been dropped before it was locked
+      if (entries.get(key) == entry) {
+        return entry.lock;
+      }
+      entry.lock.unlock();
+    }
+  }
+
+  /**
+   * Whether the user's list is cached and current with the given
+   * reservations_version of their row. Callers hold the user's lock.
+   */
+  public static boolean isCurrent(String username, int version) {
+    Entry entry = entry(username);
+    return entry.reservations != null && entry.version == version;
+  }
+
+  /**
+   * Returns the user's active reservations sorted by id, or null if they are
+   * not cached.
+   */
+  public static List<Query.Reservation> get(String username) {
+    return entry(username).reservations;
+  }
+
+  /**
+   * Returns the user's cached reservation with the given id, or null.
+   */
+  public static Query.Reservation find(String username, int reservationId) {
+    List<Query.Reservation> reservations = get(username);
+    if (reservations != null) {
+      for (Query.Reservation r : reservations) {
+        if (r.id == reservationId) {
+          return r;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Whether the user has a reservation on the given day, as of the last list
+   * cached for them. Callers hold the user's lock and have loaded the list.
+   */
+  public static boolean hasBookedDay(String username, int day) {
+    return (entry(username).bookedDays & dayBit(day)) != 0;
+  }
+
+  /**
+   * The bit for a day of the month in a booked days mask, the same as the
+   * booked_days column of USERS.
+   */
+  static int dayBit(int day) {
+    return 1 << (day - 1);
+  }
+
+  /**
+   * Caches the user's list as read at the given reservations_version.
+   */
+  public static void put(String username, List<Query.Reservation> reservations, int version) {
+    List<Query.Reservation> sorted = new ArrayList<>(reservations);
+    sorted.sort(Comparator.comparingInt(r -> r.id));
+    int bookedDays = 0;
+    for (Query.Reservation r : sorted) {
+      bookedDays |= dayBit(r.flightOne.dayOfMonth);
+    }
+    Entry entry = entry(username);
+    entry.bookedDays = bookedDays;
+    entry.version = version;
+    entry.reservations = Collections.unmodifiableList(sorted);
+  }
+
+  /**
+   * Adds or replaces a reservation in the user's list after a write that
+   * raised the user's reservations_version to the given version, if the list
+   * is cached. If another write came in between, the list is dropped instead.
+   */
+  public static void update(String username, Query.Reservation reservation, int version) {
+    Entry entry = entry(username);
+    List<Query.Reservation> current = entry.reservations;
+    if (current != null && entry.version == version - 1) {
+      List<Query.Reservation> updated = new ArrayList<>(current);
+      updated.removeIf(r -> r.id == reservation.id);
+      updated.add(reservation);
+      put(username, updated, version);
+    } else {
+      entry.reservations = null;
+    }
+  }
+
+  /**
+   * Removes a reservation from the user's list after a write that raised the
+   * user's reservations_version to the given version, if the list is cached.
+   * If another write came in between, the list is dropped instead.
+   */
+  public static void remove(String username, int reservationId, int version) {
+    Entry entry = entry(username);
+    List<Query.Reservation> current = entry.reservations;
+    if (current != null && entry.version == version - 1) {
+      List<Query.Reservation> updated = new ArrayList<>(current);
+      updated.removeIf(r -> r.id == reservationId);
+      put(username, updated, version);
+    } else {
+      entry.reservations = null;
+    }
+  }
+
+  public static void invalidate(String username) {
+    entry(username).reservations = null;
+  }
+
+  /**
+   * Drops every cached list, used when the tables are cleared.
+   */
+  public static void clear() {
+    for (Entry entry : entries.values()) {
+      entry.reservations = null;
+    }
+  }
+
+  /**
+   * Drops the least recently used entries no writer holds until a tenth of
+   * the limit is free, so entries are not dropped one at a time.
+   */
+  private static void evict() {
+    if (!evictLock.tryLock()) {
+      return;
+    }
+    try {
+      List<Map.Entry<String, Entry>> byLastUse = new ArrayList<>(entries.entrySet());
+      // Sessions keep touching entries, so sort by a snapshot
+      Map<Entry, Long> lastUsed = new HashMap<>();
+      for (Map.Entry<String, Entry> e : byLastUse) {
+        lastUsed.put(e.getValue(), e.getValue().lastUsed);
+      }
+      byLastUse.sort(Comparator.comparingLong(e -> lastUsed.get(e.getValue())));
+      int excess = entries.size() - maxUsers * 9 / 10;
+      for (Map.Entry<String, Entry> e : byLastUse) {
+        if (excess <= 0) {
+          break;
+        }
+        Entry entry = e.getValue();
+        // The lock is reentrant, so the thread evicting may hold it itself
+        if (!entry.lock.isHeldByCurrentThread() && entry.lock.tryLock()) {
+          try {
+            if (entries.remove(e.getKey(), entry)) {
+              excess--;
+            }
+          } finally {
+            entry.lock.unlock();
+          }
+        }
+      }
+    } finally {
+      evictLock.unlock();
+    }
+  }
+}
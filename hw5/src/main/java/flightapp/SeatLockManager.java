@@ -0,0 +1,115 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * In-process locks on flights, taken by book around its database batch.
+ *
+ * Bookings on the same flight otherwise meet inside SQL Server, where the
+ * serializable range locks taken by the capacity count deadlock and one of
+ * the bookings has to be rolled back and retried. With these locks they queue
+ * up in the JVM instead. Flights are mapped onto a fixed number of lock
+ * stripes, and a booking takes its stripes in ascending order so that two
+ * bookings can never wait on each other.
+ *
+ * Contention is tracked per flight, see {@link #stats()}, and the flights
+ * that were waited on are listed in the {@link StatementTracer} totals on exit. Enabled with
+ * {@code flightapp.seat_locks=true}; {@code flightapp.seat_locks.stripes} sets
+ * the number of stripes. The locks are only seen by this JVM, so with several
+ * instances bookings still meet in the database.
+ */
+public class SeatLockManager {
+  private static final Held NONE = new Held(new int[0]);
+
+  private static final int STRIPES = Math.max(1, Settings.getInt("flightapp.seat_locks.stripes", 256));
+  private static final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+  private static final ConcurrentHashMap<Integer, FlightStats> stats = new ConcurrentHashMap<>();
+
+  static {
+    for (int i = 0; i < STRIPES; i++) {
+      locks[i] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * Contention counters for one flight.
+   */
+  public static class FlightStats {
+    public final LongAdder acquisitions = new LongAdder();
+    public final LongAdder contended = new LongAdder();
+    public final LongAdder waitNanos = new LongAdder();
+
+    @Override
+    public String toString() {
+      return "acquisitions: " + acquisitions.sum() + " contended: " + contended.sum() + " wait: "
+          + TimeUnit.NANOSECONDS.toMillis(waitNanos.sum()) + " ms";
+    }
+  }
+
+  /**
+   * Stripes held by one booking.
+   */
+  public static class Held {
+    private final int[] stripes;
+
+    private Held(int[] stripes) {
+      this.stripes = stripes;
+    }
+
+    public void unlock() {
+      for (int i = stripes.length - 1; i >= 0; i--) {
+        locks[stripes[i]].unlock();
+      }
+    }
+  }
+
+  /**
+   * Locks every flight of an itinerary, waiting for bookings on the same
+   * flights that are already in progress, and records per-flight contention.
+   */
+  public static Held lock(List<Query.Flight> flights) {
+    if (!Settings.getBoolean("flightapp.seat_locks", false)) {
+      return NONE;
+    }
+
+    int[] stripes = flights.stream().mapToInt(f -> Math.floorMod(Integer.hashCode(f.fid), STRIPES)).sorted()
+        .distinct().toArray();
+    long waited = 0;
+    boolean contended = false;
+    for (int stripe : stripes) {
+      if (!locks[stripe].tryLock()) {
+        contended = true;
+        long start = System.nanoTime();
+        locks[stripe].lock();
+        waited += System.nanoTime() - start;
+      }
+    }
+
+    for (Query.Flight f : flights) {
+      FlightStats s = stats.computeIfAbsent(f.fid, k -> new FlightStats());
+      s.acquisitions.increment();
+      if (contended) {
+        s.contended.increment();
+        s.waitNanos.add(waited);
+      }
+    }
+    return new Held(stripes);
+  }
+
+  /**
+   * Returns the contention counters of every flight booked so far, most
+   * waited-on first.
+   */
+  public static Map<Integer, FlightStats> stats() {
+    List<Map.Entry<Integer, FlightStats>> entries = new ArrayList<>(stats.entrySet());
+    entries.sort((a, b) -> Long.compare(b.getValue().waitNanos.sum(), a.getValue().waitNanos.sum()));
+    Map<Integer, FlightStats> sorted = new LinkedHashMap<>();
+    for (Map.Entry<Integer, FlightStats> e : entries) {
+      sorted.put(e.getKey(), e.getValue());
+    }
+    return sorted;
+  }
+}
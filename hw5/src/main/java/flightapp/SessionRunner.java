@@ -0,0 +1,78 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs user sessions. A session is one {@link Query} driven through
+ * {@link FlightService#execute(Query, String)} one command at a time.
+ *
+ * Sessions spend almost all of their time blocked on JDBC round trips. In
+ * {@link Mode#PLATFORM} mode each running session holds a pooled platform
+ * thread while it waits, which caps the number of concurrent sessions at the
+ * pool size. In {@link Mode#VIRTUAL} mode every session gets its own virtual
+ * thread, and a blocked session only parks that virtual thread. Virtual
+ * threads need Java 21; on older runtimes VIRTUAL falls back to one platform
+ * thread per session.
+ *
+ * Code that runs inside a session must not block while holding a monitor
+ * ({@code synchronized}, {@code StringBuffer}, ...), since that pins the
+ * virtual thread to its carrier. Use {@code java.util.concurrent.locks} and
+ * {@code StringBuilder} instead.
+ */
+public class SessionRunner {
+
+  /**
+   * How sessions are mapped onto threads. Selected with the
+   * {@code flightapp.sessions} setting ({@code platform} or {@code virtual}).
+   */
+  public enum Mode {
+    PLATFORM, VIRTUAL;
+
+    public static Mode fromSettings() {
+      return valueOf(Settings.get("flightapp.sessions", "platform").toUpperCase());
+    }
+  }
+
+  /**
+   * Creates an executor that runs one session per task.
+   *
+   * @param mode            how sessions are mapped onto threads
+   * @param platformThreads pool size in {@link Mode#PLATFORM} mode
+   */
+  public static ExecutorService newExecutor(Mode mode, int platformThreads) {
+    if (mode == Mode.VIRTUAL) {
+      try {
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+        System.err.println("Virtual threads need Java 21+, running sessions on platform threads");
+        return Executors.newCachedThreadPool();
+      }
+    }
+    return Executors.newFixedThreadPool(platformThreads);
+  }
+
+  /**
+   * Returns true if this runtime can run sessions on virtual threads.
+   */
+  public static boolean virtualThreadsSupported() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Runs the given commands in order on the session's query connection and
+   * returns the concatenated responses.
+   */
+  public static String runSession(Query q, List<String> commands) {
+    StringBuilder sb = new StringBuilder();
+    for (String command : commands) {
+      sb.append(FlightService.execute(q, command));
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,104 @@
+package flightapp;
+
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Issues and checks session tokens, which let a client resume a logged in
+ * session without its password being hashed again.
+ *
+ * A token holds the username, the user's token version and when it expires,
+ * {@code flightapp.session.ttl_ms} after it was issued (default 3600000), signed
+ * with HMAC-SHA256 under {@code flightapp.session.key} (base64). Without a key
+ * one is generated at startup, so tokens then only resume sessions on the same
+ * instance until it restarts; instances that serve the same users need the
+ * same key. Checking a token takes one HMAC over a few dozen bytes, against
+ * 65536 iterations of PBKDF2 for a password.
+ *
+ * Tokens are revoked by raising the user's token_version in USERS, which every
+ * token issued before no longer matches.
+ */
+public class SessionTokens {
+  private static final String ALGORITHM = "HmacSHA256";
+
+  private static final byte[] KEY = loadKey();
+
+  private static final ThreadLocal<Mac> macs = ThreadLocal.withInitial(() -> {
+    try {
+      Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(new SecretKeySpec(KEY, ALGORITHM));
+      return mac;
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new IllegalStateException(e);
+    }
+  });
+
+  /**
+   * What a valid token says about its session.
+   */
+  static class Claims {
+    final String username;
+    final int version;
+
+    Claims(String username, int version) {
+      this.username = username;
+      this.version = version;
+    }
+  }
+
+  /**
+   * Returns a token for the given user and token version.
+   */
+  static String issue(String username, int version) {
+    long expiresAt = System.currentTimeMillis() + Settings.getLong("flightapp.session.ttl_ms", 3600000);
+    String payload = Base64.getUrlEncoder().withoutPadding().encodeToString(username.getBytes(StandardCharsets.UTF_8))
+        + "." + version + "." + expiresAt;
+    return payload + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(sign(payload));
+  }
+
+  /**
+   * Returns the claims of the given token, or null if it is malformed, was not
+   * signed with this key or has expired. Whether its version is still current
+   * is up to the caller.
+   */
+  static Claims verify(String token) {
+    int signatureStart = token.lastIndexOf('.');
+    if (signatureStart < 0) {
+      return null;
+    }
+    String payload = token.substring(0, signatureStart);
+    try {
+      byte[] signature = Base64.getUrlDecoder().decode(token.substring(signatureStart + 1));
+      if (!MessageDigest.isEqual(signature, sign(payload))) {
+        return null;
+      }
+
+      String[] parts = payload.split("\\.");
+      if (parts.length != 3 || Long.parseLong(parts[2]) < System.currentTimeMillis()) {
+        return null;
+      }
+      return new Claims(new String(Base64.getUrlDecoder().decode(parts[0]), StandardCharsets.UTF_8),
+          Integer.parseInt(parts[1]));
+    } catch (IllegalArgumentException e) {
+      // Not base64 or not a number
+      return null;
+    }
+  }
+
+  private static byte[] sign(String payload) {
+    return macs.get().doFinal(payload.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static byte[] loadKey() {
+    String key = Settings.get("flightapp.session.key", null);
+    if (key != null) {
+      return Base64.getDecoder().decode(key);
+    }
+    byte[] generated = new byte[32];
+    new SecureRandom().nextBytes(generated);
+    return generated;
+  }
+}
@@ -0,0 +1,75 @@
+package flightapp;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Optional runtime settings. A setting is looked up as a system property first
+ * (e.g. {@code -Dflightapp.sessions=virtual}) and then in dbconn.properties, so
+ * every setting can be given on the command line or kept next to the database
+ * credentials.
+ */
+public class Settings {
+  private static final String DBCONN_FILE = "dbconn.properties";
+
+  // Loaded at most a few times; a racing load just reads the same file again
+  private static volatile Properties dbconn;
+
+  /**
+   * Returns the contents of dbconn.properties, or empty properties if the file
+   * does not exist.
+   */
+  static Properties dbconn() {
+    Properties props = dbconn;
+    if (props == null) {
+      props = new Properties();
+      try (FileInputStream in = new FileInputStream(DBCONN_FILE)) {
+        props.load(in);
+      } catch (IOException e) {
+        // No file (e.g. credentials passed with -Dcredential), no settings from it
+      }
+      dbconn = props;
+    }
+    return props;
+  }
+
+  public static String get(String key, String defaultValue) {
+    String value = System.getProperty(key);
+    if (value == null) {
+      value = dbconn().getProperty(key);
+    }
+    return value == null ? defaultValue : value.trim();
+  }
+
+  public static boolean getBoolean(String key, boolean defaultValue) {
+    String value = get(key, null);
+    return value == null ? defaultValue : Boolean.parseBoolean(value);
+  }
+
+  public static int getInt(String key, int defaultValue) {
+    String value = get(key, null);
+    try {
+      return value == null ? defaultValue : Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  public static long getLong(String key, long defaultValue) {
+    String value = get(key, null);
+    try {
+      return value == null ? defaultValue : Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  public static double getDouble(String key, double defaultValue) {
+    String value = get(key, null);
+    try {
+      return value == null ? defaultValue : Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+}
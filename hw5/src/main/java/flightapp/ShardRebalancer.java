@@ -0,0 +1,215 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Moves users to the shard {@link ShardRouter} assigns them under the current
+ * {@code flightapp.shards}, then recounts BOOKED_SEATS on the home database
+ * from the reservations on every shard.
+ *
+ * To change the number of shards, stop the application, set
+ * {@code flightapp.shards} to the new count (and
+ * {@code flightapp.shards.previous} to the old one when shrinking, so the
+ * shards being retired are emptied too) and run:
+ *
+ * {@code mvn compile exec:java -Dexec.mainClass=flightapp.ShardRebalancer}
+ *
+ * Each user is copied to its new shard in one transaction and then deleted
+ * from the old one in another, so an interrupted run leaves at worst a second
+ * copy, which the next run replaces. Running it with nothing to move only
+ * recounts the seats, which also returns seats left taken by a booking or
+ * cancellation that failed halfway.
+ */
+public class ShardRebalancer {
+  private static final String GET_USERNAMES = "SELECT username FROM USERS";
+
+  private static final String GET_USER = "SELECT username, password, salt, balance, booked_days, token_version, reservations_version FROM USERS WHERE username = ?";
+
+  private static final String INSERT_USER = "INSERT INTO USERS (username, password, salt, balance, booked_days, token_version, reservations_version) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+  private static final String[] RESERVATION_TABLES = { "RESERVATIONS", "RESERVATIONS_HISTORY" };
+
+  private static final String GET_USER_RESERVATIONS = "SELECT id, userid, flight1, flight2, paid, cancelled FROM %s WHERE userid = ?";
+
+  private static final String INSERT_RESERVATION = "INSERT INTO %s (id, userid, flight1, flight2, paid, cancelled) VALUES (?, ?, ?, ?, ?, ?)";
+
+  private static final String DELETE_USER_RESERVATIONS = "DELETE FROM %s WHERE userid = ?";
+
+  private static final String DELETE_USER = "DELETE FROM USERS WHERE username = ?";
+
+  private static final String GET_ALL_SEATS = "SELECT id, flight1, flight2, cancelled FROM RESERVATIONS "
+      + "UNION ALL SELECT id, flight1, flight2, cancelled FROM RESERVATIONS_HISTORY";
+
+  private static final String CLEAR_BOOKED_SEATS = "DELETE FROM BOOKED_SEATS";
+
+  private static final String INSERT_BOOKED_SEATS = "INSERT INTO BOOKED_SEATS (id, flight1, flight2, cancelled) VALUES (?, ?, ?, ?)";
+
+  public static void main(String[] args) throws Exception {
+    int shards = ShardRouter.shardCount();
+    int scanned = Math.max(shards, Settings.getInt("flightapp.shards.previous", shards));
+
+    Connection[] conns = new Connection[scanned];
+    try {
+      for (int i = 0; i < scanned; i++) {
+        conns[i] = ShardRouter.factory(i).open();
+      }
+
+      System.out.println("Moved " + moveUsers(conns, shards) + " user(s)");
+      System.out.println("Counted " + recountSeats(conns, shards) + " reservation(s) in BOOKED_SEATS");
+    } finally {
+      for (Connection conn : conns) {
+        if (conn != null) {
+          conn.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Moves every user on the given shards that belongs on another of the first
+   * {@code shards} shards there.
+   *
+   * @return the number of users moved
+   */
+  static int moveUsers(Connection[] conns, int shards) throws SQLException {
+    int moved = 0;
+    for (int from = 0; from < conns.length; from++) {
+      for (String username : usernames(conns[from])) {
+        int to = ShardRouter.shardOf(username, shards);
+        if (to != from) {
+          move(username, conns[from], conns[to]);
+          moved++;
+        }
+      }
+    }
+    return moved;
+  }
+
+  private static List<String> usernames(Connection conn) throws SQLException {
+    List<String> usernames = new ArrayList<>();
+    try (Statement statement = conn.createStatement(); ResultSet rs = statement.executeQuery(GET_USERNAMES)) {
+      while (rs.next()) {
+        usernames.add(rs.getString("username"));
+      }
+    }
+    return usernames;
+  }
+
+  /**
+   * Copies the user and their reservations to the target shard, replacing any
+   * earlier copy, then deletes them from the source shard.
+   */
+  static void move(String username, Connection from, Connection to) throws SQLException {
+    to.setAutoCommit(false);
+    try {
+      deleteUser(username, to);
+      try (PreparedStatement get = from.prepareStatement(GET_USER);
+          PreparedStatement insert = to.prepareStatement(INSERT_USER)) {
+        get.setString(1, username);
+        try (ResultSet rs = get.executeQuery()) {
+          if (!rs.next()) {
+            to.rollback();
+            return;
+          }
+          insert.setString(1, rs.getString("username"));
+          insert.setBytes(2, rs.getBytes("password"));
+          insert.setBytes(3, rs.getBytes("salt"));
+          insert.setInt(4, rs.getInt("balance"));
+          insert.setInt(5, rs.getInt("booked_days"));
+          insert.setInt(6, rs.getInt("token_version"));
+          insert.setInt(7, rs.getInt("reservations_version"));
+          insert.executeUpdate();
+        }
+      }
+      for (String table : RESERVATION_TABLES) {
+        try (PreparedStatement get = from.prepareStatement(String.format(GET_USER_RESERVATIONS, table));
+            PreparedStatement insert = to.prepareStatement(String.format(INSERT_RESERVATION, table))) {
+          get.setString(1, username);
+          try (ResultSet rs = get.executeQuery()) {
+            while (rs.next()) {
+              insert.setInt(1, rs.getInt("id"));
+              insert.setString(2, rs.getString("userid"));
+              insert.setInt(3, rs.getInt("flight1"));
+              insert.setObject(4, rs.getObject("flight2"), Types.INTEGER);
+              insert.setInt(5, rs.getInt("paid"));
+              insert.setInt(6, rs.getInt("cancelled"));
+              insert.addBatch();
+            }
+          }
+          insert.executeBatch();
+        }
+      }
+      to.commit();
+    } catch (SQLException e) {
+      to.rollback();
+      throw e;
+    } finally {
+      to.setAutoCommit(true);
+    }
+
+    from.setAutoCommit(false);
+    try {
+      deleteUser(username, from);
+      from.commit();
+    } catch (SQLException e) {
+      from.rollback();
+      throw e;
+    } finally {
+      from.setAutoCommit(true);
+    }
+  }
+
+  private static void deleteUser(String username, Connection conn) throws SQLException {
+    for (String table : RESERVATION_TABLES) {
+      try (PreparedStatement delete = conn.prepareStatement(String.format(DELETE_USER_RESERVATIONS, table))) {
+        delete.setString(1, username);
+        delete.executeUpdate();
+      }
+    }
+    try (PreparedStatement delete = conn.prepareStatement(DELETE_USER)) {
+      delete.setString(1, username);
+      delete.executeUpdate();
+    }
+  }
+
+  /**
+   * Rebuilds BOOKED_SEATS from the reservations on the first {@code shards}
+   * shards in one transaction.
+   *
+   * @return the number of reservations counted
+   */
+  static int recountSeats(Connection[] conns, int shards) throws SQLException {
+    Connection home = conns[0];
+    int counted = 0;
+    home.setAutoCommit(false);
+    try {
+      try (Statement clear = home.createStatement()) {
+        clear.executeUpdate(CLEAR_BOOKED_SEATS);
+      }
+      try (PreparedStatement insert = home.prepareStatement(INSERT_BOOKED_SEATS)) {
+        for (int shard = 0; shard < shards; shard++) {
+          try (Statement statement = conns[shard].createStatement();
+              ResultSet rs = statement.executeQuery(GET_ALL_SEATS)) {
+            while (rs.next()) {
+              insert.setInt(1, rs.getInt("id"));
+              insert.setInt(2, rs.getInt("flight1"));
+              insert.setObject(3, rs.getObject("flight2"), Types.INTEGER);
+              insert.setInt(4, rs.getInt("cancelled"));
+              insert.addBatch();
+              counted++;
+            }
+          }
+        }
+        insert.executeBatch();
+      }
+      home.commit();
+    } catch (SQLException e) {
+      home.rollback();
+      throw e;
+    } finally {
+      home.setAutoCommit(true);
+    }
+    return counted;
+  }
+}
@@ -0,0 +1,105 @@
+package flightapp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntFunction;
+
+/**
+ * Maps users to the database shard that holds their USERS row and
+ * reservations.
+ *
+ * With {@code flightapp.shards=N} (default 1, no sharding) users are spread
+ * over N databases by a jump consistent hash of their lowercased username, so
+ * growing from N to N + 1 shards only moves about 1/(N + 1) of the users (see
+ * {@link ShardRebalancer}). Shard 0 is the database in dbconn.properties, the
+ * home database. Shard i connects with {@code flightapp.shard.<i>.server_url},
+ * {@code .database_name}, {@code .username} and {@code .password}, each
+ * defaulting to the home database's, so shards can be databases on one server.
+ *
+ * FLIGHTS is read-only reference data loaded into every shard, so reservations
+ * can be joined to their flights where they live. Seats are shared by users on
+ * every shard, so they are counted in one place: BOOKED_SEATS on the home
+ * database holds the flights of every reservation by id, and a booking takes
+ * its seats (and its id) there before it inserts the reservation on the user's
+ * shard.
+ */
+public class ShardRouter {
+  // Set by tests to open every shard on a stand-in database instead
+  private static volatile IntFunction<ConnectionFactory> factories;
+
+  /**
+   * Opens shards with the given factories from now on, or with the configured
+   * databases again if null.
+   */
+  static void setFactories(IntFunction<ConnectionFactory> shardFactories) {
+    factories = shardFactories;
+  }
+
+  public static int shardCount() {
+    return Math.max(1, Settings.getInt("flightapp.shards", 1));
+  }
+
+  public static boolean sharded() {
+    return shardCount() > 1;
+  }
+
+  /**
+   * Returns the shard of the given user under the current shard count.
+   */
+  public static int shardOf(String username) {
+    return shardOf(username, shardCount());
+  }
+
+  /**
+   * Returns the shard of the given user out of {@code shards} shards.
+   */
+  public static int shardOf(String username, int shards) {
+    return jumpHash(fnv1a(username.toLowerCase()), shards);
+  }
+
+  /**
+   * Opens connections to the given shard.
+   */
+  public static ConnectionFactory factory(int shard) {
+    IntFunction<ConnectionFactory> overridden = factories;
+    if (overridden != null) {
+      return overridden.apply(shard);
+    }
+    if (shard == 0) {
+      return Query::openConnectionFromDbConn;
+    }
+    String prefix = "flightapp.shard." + shard + ".";
+    String serverURL = Settings.get(prefix + "server_url", Settings.get("flightapp.server_url", null));
+    String dbName = Settings.get(prefix + "database_name", Settings.get("flightapp.database_name", null));
+    String adminName = Settings.get(prefix + "username", Settings.get("flightapp.username", null));
+    String password = Settings.get(prefix + "password", Settings.get("flightapp.password", null));
+    return () -> Query.openConnectionFromCredential(serverURL, dbName, adminName, password);
+  }
+
+  /**
+   * Identifies the shard's database to {@link ConnectionWarmer}.
+   */
+  public static String key(int shard) {
+    return shard == 0 ? "dbconn" : "shard" + shard;
+  }
+
+  // Lamping and Veach, "A Fast, Minimal Memory, Consistent Hash Algorithm"
+  static int jumpHash(long key, int buckets) {
+    long b = -1;
+    long j = 0;
+    while (j < buckets) {
+      b = j;
+      key = key * 2862933555777941757L + 1;
+      j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+    }
+    return (int) b;
+  }
+
+  private static long fnv1a(String s) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+}
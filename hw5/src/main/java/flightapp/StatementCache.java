@@ -0,0 +1,41 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * A connection together with the statements prepared on it so far. A
+ * statement is prepared the first time it is used and then reused for the
+ * life of the connection, so a session only pays for the statements it
+ * actually runs. Not thread safe; each session owns its own.
+ *
+ * JDBC prepared statements belong to the connection they were prepared on, so
+ * the cache is per connection. What carries across connections is the
+ * server's plan cache: a statement prepared on one connection compiles a plan
+ * that every other connection preparing the same SQL reuses, which is what
+ * {@link ConnectionWarmer} relies on.
+ */
+public class StatementCache {
+  private final Connection conn;
+  private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+  public StatementCache(Connection conn) {
+    this.conn = conn;
+  }
+
+  public Connection connection() {
+    return conn;
+  }
+
+  /**
+   * Returns the prepared statement for the given SQL, preparing it on first use.
+   */
+  public PreparedStatement prepare(String sql) throws SQLException {
+    PreparedStatement statement = statements.get(sql);
+    if (statement == null) {
+      statement = conn.prepareStatement(sql);
+      statements.put(sql, statement);
+    }
+    return statement;
+  }
+}
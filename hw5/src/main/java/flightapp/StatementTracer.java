@@ -0,0 +1,402 @@
+package flightapp;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Traces every statement run on the application's connections.
+ *
+ * With {@code flightapp.trace=true}, connections are wrapped in proxies that
+ * time each execution and count the rows it returns (or updates), tagged with
+ * the command the session was running ({@code search}, {@code book}, ...) or,
+ * on background threads, the thread's name. Statements are named after the
+ * constant holding their SQL, e.g. {@code Query.GET_DIRECT_FLIGHTS}. When the
+ * JVM exits, totals per command and statement are written to
+ * {@code flightapp.trace.log} (default standard error), followed by the
+ * flights bookings waited on with {@code flightapp.seat_locks=true} (see
+ * {@link SeatLockManager#stats()}).
+ *
+ * Executions slower than {@code flightapp.trace.slow_ms} (default 100) are
+ * written to the same log as they finish, with their parameters. With
+ * {@code flightapp.trace.lock_waits=true} each execution also records how long
+ * it waited on locks, read from the session's wait statistics (one more round
+ * trip per statement), and with {@code flightapp.trace.plans=true} a slow
+ * execution is logged with the server's cached plan for its SQL.
+ */
+public class StatementTracer {
+  private static final String GET_LOCK_WAITS = "SELECT ISNULL(SUM(wait_time_ms), 0) AS wait_ms "
+      + "FROM sys.dm_exec_session_wait_stats WHERE session_id = @@SPID AND wait_type LIKE 'LCK%'";
+
+  // Prepared statements reach the server with ? replaced, so plans are found by
+  // the text before the first parameter
+  private static final String GET_PLAN = "SELECT TOP 1 CAST(qp.query_plan AS NVARCHAR(MAX)) AS query_plan "
+      + "FROM sys.dm_exec_query_stats AS qs CROSS APPLY sys.dm_exec_sql_text(qs.sql_handle) AS st "
+      + "CROSS APPLY sys.dm_exec_query_plan(qs.plan_handle) AS qp "
+      + "WHERE CHARINDEX(?, st.text) > 0 ORDER BY qs.last_execution_time DESC";
+
+  private static final Class<?>[] STATEMENT_OWNERS = { Query.class, BookingCoordinator.class, FullFlights.class,
+      OneStopConnections.class, ReservationArchiver.class, ShardRebalancer.class, ReplicaRouter.class,
+      UsernameFilter.class };
+
+  private static final ThreadLocal<String> command = new ThreadLocal<>();
+
+  private static final ConcurrentHashMap<String, Totals> totals = new ConcurrentHashMap<>();
+
+  private static volatile Map<String, String> names;
+  private static volatile PrintStream log;
+  private static final Lock initLock = new ReentrantLock();
+  private static final Lock logLock = new ReentrantLock();
+  private static volatile boolean lockWaitsAvailable = true;
+
+  /**
+   * Totals of one statement under one command.
+   */
+  private static class Totals {
+    final LongAdder executions = new LongAdder();
+    final LongAdder nanos = new LongAdder();
+    final LongAdder rows = new LongAdder();
+    final LongAdder lockWaitMillis = new LongAdder();
+    final AtomicLong maxNanos = new AtomicLong();
+  }
+
+  /**
+   * One execution, recorded once its rows have been read.
+   */
+  private static class Execution {
+    final String command;
+    final String name;
+    final Map<Integer, Object> parameters;
+    final long nanos;
+    final long lockWaitMillis;
+    final String plan;
+    final FlightEvents.RoundTripEvent event;
+    long rows;
+
+    Execution(String command, String name, Map<Integer, Object> parameters, long nanos, long lockWaitMillis,
+        String plan, FlightEvents.RoundTripEvent event) {
+      this.command = command;
+      this.name = name;
+      this.parameters = parameters;
+      this.nanos = nanos;
+      this.lockWaitMillis = lockWaitMillis;
+      this.plan = plan;
+      this.event = event;
+    }
+  }
+
+  public static boolean enabled() {
+    return Settings.getBoolean("flightapp.trace", false);
+  }
+
+  /**
+   * Tags the statements this thread runs with the given command until
+   * {@link #endCommand()}.
+   */
+  public static void beginCommand(String name) {
+    command.set(name);
+  }
+
+  public static void endCommand() {
+    command.remove();
+  }
+
+  /**
+   * Returns the connection wrapped in a tracing proxy if tracing or
+   * {@link FlightEvents} are enabled, and the connection itself otherwise.
+   */
+  public static Connection wrap(Connection conn) throws SQLException {
+    if (!enabled() && !FlightEvents.enabled()) {
+      return conn;
+    }
+    init();
+    return (Connection) Proxy.newProxyInstance(StatementTracer.class.getClassLoader(),
+        new Class<?>[] { Connection.class }, new ConnectionHandler(conn));
+  }
+
+  private static void init() {
+    if (names != null) {
+      return;
+    }
+    initLock.lock();
+    try {
+      if (names != null) {
+        return;
+      }
+      Map<String, String> found = new HashMap<>();
+      for (Class<?> owner : STATEMENT_OWNERS) {
+        for (Field field : owner.getDeclaredFields()) {
+          if (field.getType() == String.class && Modifier.isStatic(field.getModifiers())
+              && Modifier.isFinal(field.getModifiers())) {
+            try {
+              field.setAccessible(true);
+              found.putIfAbsent((String) field.get(null), owner.getSimpleName() + "." + field.getName());
+            } catch (ReflectiveOperationException | RuntimeException e) {
+              // Not a statement we can name
+            }
+          }
+        }
+      }
+
+      if (enabled()) {
+        String path = Settings.get("flightapp.trace.log", null);
+        try {
+          log = path == null ? System.err : new PrintStream(new FileOutputStream(path, true), true);
+        } catch (IOException e) {
+          System.err.println("Failed to open the trace log, tracing to standard error: " + e.getMessage());
+          log = System.err;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(StatementTracer::printTotals));
+      }
+      names = found;
+    } finally {
+      initLock.unlock();
+    }
+  }
+
+  private static String nameOf(String sql) {
+    String name = names.get(sql);
+    if (name != null) {
+      return name;
+    }
+    String oneLine = sql.replaceAll("\\s+", " ");
+    return oneLine.length() <= 60 ? oneLine : oneLine.substring(0, 60) + "...";
+  }
+
+  private static void record(Execution e) {
+    if (e.event != null) {
+      e.event.rows = e.rows;
+      e.event.commit();
+    }
+    if (!enabled()) {
+      return;
+    }
+
+    Totals t = totals.computeIfAbsent(e.command + "\t" + e.name, k -> new Totals());
+    t.executions.increment();
+    t.nanos.add(e.nanos);
+    t.rows.add(e.rows);
+    t.lockWaitMillis.add(e.lockWaitMillis);
+    t.maxNanos.accumulateAndGet(e.nanos, Math::max);
+
+    long slowMillis = Settings.getLong("flightapp.trace.slow_ms", 100);
+    if (e.nanos >= TimeUnit.MILLISECONDS.toNanos(slowMillis)) {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("Slow statement: %s %s %.1f ms, %d row(s)", e.command, e.name, e.nanos / 1e6, e.rows));
+      if (e.lockWaitMillis > 0) {
+        sb.append(", ").append(e.lockWaitMillis).append(" ms waiting on locks");
+      }
+      sb.append("\n  parameters: ").append(e.parameters.values());
+      if (e.plan != null) {
+        sb.append("\n  plan: ").append(e.plan);
+      }
+      print(sb.toString());
+    }
+  }
+
+  private static void print(String message) {
+    logLock.lock();
+    try {
+      log.println(message);
+    } finally {
+      logLock.unlock();
+    }
+  }
+
+  private static void printTotals() {
+    List<Map.Entry<String, Totals>> sorted = new ArrayList<>(totals.entrySet());
+    sorted.sort(Comparator.comparingLong((Map.Entry<String, Totals> e) -> e.getValue().nanos.sum()).reversed());
+
+    StringBuilder sb = new StringBuilder("Statement totals (command, statement, executions, total ms, mean ms, "
+        + "max ms, rows, lock wait ms):\n");
+    for (Map.Entry<String, Totals> e : sorted) {
+      Totals t = e.getValue();
+      long executions = t.executions.sum();
+      sb.append(String.format("%s\t%d\t%.1f\t%.2f\t%.1f\t%d\t%d%n", e.getKey(), executions, t.nanos.sum() / 1e6,
+          t.nanos.sum() / 1e6 / Math.max(1, executions), t.maxNanos.get() / 1e6, t.rows.sum(),
+          t.lockWaitMillis.sum()));
+    }
+
+    // Seat locks, most waited-on flight first, leaving out flights nobody waited on
+    String seatLockHeader = "Seat lock contention (flight, acquisitions, contended, wait ms):\n";
+    for (Map.Entry<Integer, SeatLockManager.FlightStats> e : SeatLockManager.stats().entrySet()) {
+      SeatLockManager.FlightStats f = e.getValue();
+      if (f.contended.sum() > 0) {
+        sb.append(seatLockHeader);
+        seatLockHeader = "";
+        sb.append(String.format("%d\t%d\t%d\t%.1f%n", e.getKey(), f.acquisitions.sum(), f.contended.sum(),
+            f.waitNanos.sum() / 1e6));
+      }
+    }
+    print(sb.toString());
+  }
+
+  /**
+   * Hands out tracing statements and keeps the session's lock wait total, so
+   * each execution can be charged the difference.
+   */
+  private static class ConnectionHandler implements InvocationHandler {
+    final Connection conn;
+    long lockWaitMillis = -1;
+
+    ConnectionHandler(Connection conn) {
+      this.conn = conn;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      Object result = forward(conn, method, args);
+      if (result instanceof PreparedStatement && method.getName().equals("prepareStatement")) {
+        return statementProxy(PreparedStatement.class, (Statement) result, (String) args[0]);
+      }
+      if (result instanceof Statement && method.getName().equals("createStatement")) {
+        return statementProxy(Statement.class, (Statement) result, null);
+      }
+      return result;
+    }
+
+    private Object statementProxy(Class<?> type, Statement statement, String sql) {
+      return Proxy.newProxyInstance(StatementTracer.class.getClassLoader(), new Class<?>[] { type },
+          new StatementHandler(this, statement, sql));
+    }
+
+    /**
+     * Milliseconds this session has waited on locks since the last call.
+     */
+    long lockWaitSinceLast() {
+      if (!enabled() || !lockWaitsAvailable || !Settings.getBoolean("flightapp.trace.lock_waits", false)) {
+        return 0;
+      }
+      try (Statement s = conn.createStatement(); ResultSet rs = s.executeQuery(GET_LOCK_WAITS)) {
+        rs.next();
+        long total = rs.getLong("wait_ms");
+        long since = lockWaitMillis < 0 ? 0 : total - lockWaitMillis;
+        lockWaitMillis = total;
+        return since;
+      } catch (SQLException e) {
+        lockWaitsAvailable = false;
+        print("Lock waits cannot be read, leaving them out: " + e.getMessage());
+        return 0;
+      }
+    }
+
+    String plan(String sql) {
+      if (!enabled() || !Settings.getBoolean("flightapp.trace.plans", false)) {
+        return null;
+      }
+      int firstParameter = sql.indexOf('?');
+      String prefix = firstParameter < 0 ? sql : sql.substring(0, firstParameter);
+      prefix = prefix.substring(0, Math.min(prefix.length(), 200));
+      try (PreparedStatement s = conn.prepareStatement(GET_PLAN)) {
+        s.setString(1, prefix);
+        try (ResultSet rs = s.executeQuery()) {
+          return rs.next() ? rs.getString("query_plan") : null;
+        }
+      } catch (SQLException e) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Times executions, keeps the parameters set for the next one and counts the
+   * rows of the result sets it hands out.
+   */
+  private static class StatementHandler implements InvocationHandler {
+    final ConnectionHandler connection;
+    final Statement statement;
+    final String preparedSql;
+    final Map<Integer, Object> parameters = new TreeMap<>();
+    // Waiting for its result set to be read
+    Execution pending;
+
+    StatementHandler(ConnectionHandler connection, Statement statement, String preparedSql) {
+      this.connection = connection;
+      this.statement = statement;
+      this.preparedSql = preparedSql;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+        parameters.put((Integer) args[0], name.equals("setNull") ? null : args[1]);
+      } else if (name.equals("clearParameters")) {
+        parameters.clear();
+      } else if (name.equals("close")) {
+        finishPending();
+      } else if (name.equals("getResultSet")) {
+        ResultSet rs = (ResultSet) forward(statement, method, args);
+        return rs == null ? null : resultSetProxy(rs);
+      }
+
+      if (!name.startsWith("execute")) {
+        return forward(statement, method, args);
+      }
+
+      finishPending();
+      String sql = preparedSql != null ? preparedSql : (String) args[0];
+      String tag = command.get() != null ? command.get() : Thread.currentThread().getName();
+      String statementName = nameOf(sql);
+      FlightEvents.RoundTripEvent event = FlightEvents.beginRoundTrip(tag, statementName);
+      FlightEvents.databaseCall();
+      long start = System.nanoTime();
+      Object result = forward(statement, method, args);
+      long nanos = System.nanoTime() - start;
+
+      long slowNanos = TimeUnit.MILLISECONDS.toNanos(Settings.getLong("flightapp.trace.slow_ms", 100));
+      Execution e = new Execution(tag, statementName, enabled() ? new TreeMap<>(parameters) : null, nanos,
+          connection.lockWaitSinceLast(), nanos >= slowNanos ? connection.plan(sql) : null, event);
+
+      if (result instanceof ResultSet) {
+        pending = e;
+        return resultSetProxy((ResultSet) result);
+      }
+      if (result instanceof Integer) {
+        e.rows = (Integer) result;
+      } else if (result instanceof int[]) {
+        for (int count : (int[]) result) {
+          e.rows += Math.max(0, count);
+        }
+      } else if (Boolean.TRUE.equals(result)) {
+        // Rows come through getResultSet
+        pending = e;
+        return result;
+      }
+      record(e);
+      return result;
+    }
+
+    private void finishPending() {
+      if (pending != null) {
+        record(pending);
+        pending = null;
+      }
+    }
+
+    private ResultSet resultSetProxy(ResultSet rs) {
+      return (ResultSet) Proxy.newProxyInstance(StatementTracer.class.getClassLoader(),
+          new Class<?>[] { ResultSet.class }, (proxy, method, args) -> {
+            Object result = forward(rs, method, args);
+            if (method.getName().equals("next") && Boolean.TRUE.equals(result) && pending != null) {
+              pending.rows++;
+            } else if (method.getName().equals("close")) {
+              finishPending();
+            }
+            return result;
+          });
+    }
+  }
+
+  private static Object forward(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+}
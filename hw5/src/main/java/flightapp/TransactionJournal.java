@@ -0,0 +1,274 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary journal of every successful book, pay and cancel, for
+ * auditing and for rebuilding state (see {@link JournalReader}).
+ *
+ * Records are copied into a memory-mapped segment of the file, so an append
+ * is a short memory copy under a lock and never waits on the disk. A
+ * background thread forces the mapped pages to disk every
+ * {@code flightapp.journal.flush_ms} milliseconds (default 10), flushing all
+ * records appended since the last flush together. A crash can lose at most
+ * that window of records.
+ *
+ * Each record is its length, a CRC32 of its body and the body. The file is
+ * extended a segment at a time, and the unused rest of the last segment is
+ * zeros, which read as the end of the journal. Enabled by setting
+ * {@code flightapp.journal} to the journal's path; an existing journal is
+ * appended to. If the journal cannot be opened, appends are dropped for a
+ * minute before it is tried again.
+ */
+public class TransactionJournal {
+  public static final byte BOOK = 1;
+  public static final byte PAY = 2;
+  public static final byte CANCEL = 3;
+
+  static final int HEADER_BYTES = 8;
+
+  private static final long SEGMENT_BYTES = 16 << 20;
+
+  private static final long RETRY_OPEN_MILLIS = 60000;
+
+  private static volatile TransactionJournal instance;
+  private static final Lock instanceLock = new ReentrantLock();
+  // When to try opening the journal again after a failure, 0 if none failed
+  private static volatile long retryOpenAt;
+
+  private final FileChannel channel;
+  private final Lock lock = new ReentrantLock();
+  private MappedByteBuffer segment;
+  private long segmentStart;
+
+  /**
+   * One journal record. Fields that do not apply to its type are 0.
+   */
+  public static class Entry {
+    public final byte type;
+    public final long timestamp;
+    public final String username;
+    public final int reservationId;
+    public final int fid1;
+    public final int fid2;
+    public final int cost;
+    public final int balance;
+
+    public Entry(byte type, long timestamp, String username, int reservationId, int fid1, int fid2, int cost,
+        int balance) {
+      this.type = type;
+      this.timestamp = timestamp;
+      this.username = username;
+      this.reservationId = reservationId;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+      this.cost = cost;
+      this.balance = balance;
+    }
+
+    byte[] encode() {
+      byte[] name = username.getBytes(StandardCharsets.UTF_8);
+      ByteBuffer body = ByteBuffer.allocate(1 + 8 + 2 + name.length + 5 * 4);
+      body.put(type).putLong(timestamp).putShort((short) name.length).put(name);
+      body.putInt(reservationId).putInt(fid1).putInt(fid2).putInt(cost).putInt(balance);
+      return body.array();
+    }
+
+    static Entry decode(ByteBuffer body) {
+      byte type = body.get();
+      long timestamp = body.getLong();
+      byte[] name = new byte[body.getShort()];
+      body.get(name);
+      return new Entry(type, timestamp, new String(name, StandardCharsets.UTF_8), body.getInt(), body.getInt(),
+          body.getInt(), body.getInt(), body.getInt());
+    }
+
+    @Override
+    public String toString() {
+      String time = java.time.Instant.ofEpochMilli(timestamp).toString();
+      switch (type) {
+        case BOOK:
+          return time + " book " + username + " reservation " + reservationId + " flights " + fid1
+              + (fid2 != 0 ? " " + fid2 : "");
+        case PAY:
+          return time + " pay " + username + " reservation " + reservationId + " cost " + cost + " balance "
+              + balance;
+        case CANCEL:
+          return time + " cancel " + username + " reservation " + reservationId + " balance " + balance;
+        default:
+          return time + " unknown record type " + type;
+      }
+    }
+  }
+
+  private TransactionJournal(Path path, long flushMillis) throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    segmentStart = scan(channel, entry -> {
+    });
+    segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart, SEGMENT_BYTES);
+
+    ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "journal-flusher");
+      t.setDaemon(true);
+      return t;
+    });
+    flusher.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+  }
+
+  /**
+   * Records a booking, if the journal is enabled.
+   */
+  public static void book(String username, int reservationId, int fid1, int fid2) {
+    append(new Entry(BOOK, System.currentTimeMillis(), username, reservationId, fid1, fid2, 0, 0));
+  }
+
+  /**
+   * Records a payment and the balance it left, if the journal is enabled.
+   */
+  public static void pay(String username, int reservationId, int cost, int balance) {
+    append(new Entry(PAY, System.currentTimeMillis(), username, reservationId, 0, 0, cost, balance));
+  }
+
+  /**
+   * Records a cancellation and the balance after any refund, if the journal is
+   * enabled.
+   */
+  public static void cancel(String username, int reservationId, int balance) {
+    append(new Entry(CANCEL, System.currentTimeMillis(), username, reservationId, 0, 0, 0, balance));
+  }
+
+  private static void append(Entry entry) {
+    TransactionJournal journal = get();
+    if (journal == null) {
+      return;
+    }
+    try {
+      journal.write(entry.encode());
+    } catch (IOException e) {
+      System.err.println("Failed to write to the journal: " + e.getMessage());
+    }
+  }
+
+  private static TransactionJournal get() {
+    String path = Settings.get("flightapp.journal", null);
+    if (path == null) {
+      return null;
+    }
+
+    TransactionJournal journal = instance;
+    if (journal == null) {
+      if (retryOpenAt != 0 && System.currentTimeMillis() < retryOpenAt) {
+        return null;
+      }
+      instanceLock.lock();
+      try {
+        journal = instance;
+        if (journal == null) {
+          journal = new TransactionJournal(Paths.get(path), Settings.getLong("flightapp.journal.flush_ms", 10));
+          instance = journal;
+        }
+      } catch (IOException e) {
+        retryOpenAt = System.currentTimeMillis() + RETRY_OPEN_MILLIS;
+        System.err.println("Failed to open the journal, not journaling for " + RETRY_OPEN_MILLIS / 1000 + " s: "
+            + e.getMessage());
+      } finally {
+        instanceLock.unlock();
+      }
+    }
+    return journal;
+  }
+
+  private void write(byte[] body) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(body);
+
+    lock.lock();
+    try {
+      if (segment.remaining() < HEADER_BYTES + body.length) {
+        // The next segment is mapped from the end of the last record, so there
+        // is no gap between segments
+        segment.force();
+        segmentStart += segment.position();
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart,
+            Math.max(SEGMENT_BYTES, HEADER_BYTES + body.length));
+      }
+      segment.putInt(body.length).putInt((int) crc.getValue()).put(body);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void flush() {
+    MappedByteBuffer current;
+    lock.lock();
+    try {
+      current = segment;
+    } finally {
+      lock.unlock();
+    }
+    current.force();
+  }
+
+  /**
+   * Reads every complete record of the journal in order, and returns the
+   * offset just past the last one. The file is mapped a segment at a time, as
+   * a single mapping cannot be larger than 2 GB; each window starts at the
+   * last complete record of the one before, so no record is split.
+   */
+  static long scan(FileChannel channel, Consumer<Entry> each) throws IOException {
+    long size = channel.size();
+    long end = 0;
+    while (end < size) {
+      long windowBytes = Math.min(SEGMENT_BYTES, size - end);
+      MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, end, windowBytes);
+      Entry entry;
+      int read = 0;
+      while ((entry = readRecord(window)) != null) {
+        each.accept(entry);
+        read = window.position();
+      }
+      // Nothing complete in a whole window, or the rest of the file read
+      if (read == 0 || end + windowBytes == size) {
+        return end + read;
+      }
+      end += read;
+    }
+    return end;
+  }
+
+  /**
+   * Reads the record at the buffer's position and moves past it, or returns
+   * null at the end of the journal or at a torn record.
+   */
+  static Entry readRecord(ByteBuffer buffer) {
+    if (buffer.remaining() < HEADER_BYTES) {
+      return null;
+    }
+    int start = buffer.position();
+    int length = buffer.getInt();
+    int checksum = buffer.getInt();
+    if (length <= 0 || length > buffer.remaining()) {
+      buffer.position(start);
+      return null;
+    }
+
+    byte[] body = new byte[length];
+    buffer.get(body);
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    if ((int) crc.getValue() != checksum) {
+      buffer.position(start);
+      return null;
+    }
+    return Entry.decode(ByteBuffer.wrap(body));
+  }
+}
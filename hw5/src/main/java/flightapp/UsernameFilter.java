@@ -0,0 +1,239 @@
+package flightapp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * A Bloom filter over the usernames in USERS, so that logins with usernames
+ * that do not exist, such as credential stuffing, fail without a round trip,
+ * and creates only look for an existing user when there may be one.
+ *
+ * Enabled with {@code flightapp.user_filter=true}. The filter is loaded from
+ * every shard in the background when the first session opens and again every
+ * {@code flightapp.user_filter.refresh_ms} (default 60000, 0 or less loads it
+ * once); until it is loaded every username may exist. It is sized for twice the
+ * users it was loaded with at 10 bits and 7 hashes per name, about 1% false
+ * positives, and users created by this instance are added as they are created.
+ * A false positive only costs the round trip the filter would have saved, but a
+ * user created by another instance is unknown here until the next load, so
+ * with several instances keep the refresh interval short or leave the filter
+ * off.
+ */
+public class UsernameFilter {
+  private static final String COUNT_USERS = "SELECT COUNT(*) AS users FROM USERS";
+
+  private static final String GET_USERNAMES = "SELECT username FROM USERS";
+
+  private static final int BITS_PER_NAME = 10;
+  private static final int HASHES = 7;
+  private static final int MIN_NAMES = 1 << 16;
+
+  private static final long DEFAULT_REFRESH_MILLIS = 60000;
+
+  // Null until loaded
+  private static volatile Filter filter;
+  // Names added while a load is reading the tables, added to what it read
+  private static volatile Queue<String> addedDuringLoad;
+  // Held for reading to add a name and for writing to swap filters
+  private static final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private static volatile ScheduledExecutorService loader;
+  private static final Lock loaderLock = new ReentrantLock();
+
+  /**
+   * The bits of one filter, set with double hashing of a 64-bit hash.
+   */
+  private static class Filter {
+    final AtomicLongArray words;
+    final long bits;
+
+    Filter(long names) {
+      bits = Math.max(64, names * BITS_PER_NAME);
+      words = new AtomicLongArray((int) ((bits + 63) / 64));
+    }
+
+    void add(String username) {
+      long hash = hash(username);
+      for (int i = 0; i < HASHES; i++) {
+        long bit = bit(hash, i);
+        int word = (int) (bit >>> 6);
+        long mask = 1L << bit;
+        long current;
+        do {
+          current = words.get(word);
+        } while ((current & mask) == 0 && !words.compareAndSet(word, current, current | mask));
+      }
+    }
+
+    boolean mightContain(String username) {
+      long hash = hash(username);
+      for (int i = 0; i < HASHES; i++) {
+        long bit = bit(hash, i);
+        if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private long bit(long hash, int i) {
+      int h1 = (int) hash;
+      int h2 = (int) (hash >>> 32);
+      return Integer.toUnsignedLong(h1 + i * h2) * bits >>> 32;
+    }
+  }
+
+  public static boolean enabled() {
+    return Settings.getBoolean("flightapp.user_filter", false);
+  }
+
+  /**
+   * Starts loading the filter in the background, if enabled and not already
+   * started.
+   *
+   * @param home opens connections to shard 0, the session's database
+   */
+  public static void start(ConnectionFactory home) {
+    if (!enabled() || loader != null) {
+      return;
+    }
+
+    loaderLock.lock();
+    try {
+      if (loader != null) {
+        return;
+      }
+      loader = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "username-filter");
+        t.setDaemon(true);
+        return t;
+      });
+      long refreshMillis = Settings.getLong("flightapp.user_filter.refresh_ms", DEFAULT_REFRESH_MILLIS);
+      if (refreshMillis > 0) {
+        loader.scheduleWithFixedDelay(() -> load(home), 0, refreshMillis, TimeUnit.MILLISECONDS);
+      } else {
+        loader.execute(() -> load(home));
+      }
+    } finally {
+      loaderLock.unlock();
+    }
+  }
+
+  /**
+   * Returns false if no user has the given username, and true if one may.
+   */
+  public static boolean mightExist(String username) {
+    Filter f = filter;
+    return f == null || f.mightContain(username.toLowerCase());
+  }
+
+  /**
+   * Adds a username that has just been created.
+   */
+  public static void add(String username) {
+    String name = username.toLowerCase();
+    lock.readLock().lock();
+    try {
+      Filter f = filter;
+      if (f != null) {
+        f.add(name);
+      }
+      Queue<String> pending = addedDuringLoad;
+      if (pending != null) {
+        pending.add(name);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Forgets every username, used when the tables are cleared.
+   */
+  public static void clear() {
+    lock.writeLock().lock();
+    try {
+      Filter f = filter;
+      if (f != null) {
+        filter = new Filter(f.bits / BITS_PER_NAME);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private static void load(ConnectionFactory home) {
+    lock.writeLock().lock();
+    try {
+      addedDuringLoad = new ConcurrentLinkedQueue<>();
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    Filter loaded = null;
+    int shards = ShardRouter.shardCount();
+    Connection[] conns = new Connection[shards];
+    try {
+      long users = 0;
+      for (int shard = 0; shard < shards; shard++) {
+        conns[shard] = shard == 0 ? home.open() : ShardRouter.factory(shard).open();
+        try (Statement s = conns[shard].createStatement(); ResultSet rs = s.executeQuery(COUNT_USERS)) {
+          rs.next();
+          users += rs.getLong("users");
+        }
+      }
+
+      loaded = new Filter(Math.max(MIN_NAMES, 2 * users));
+      for (Connection conn : conns) {
+        try (Statement s = conn.createStatement(); ResultSet rs = s.executeQuery(GET_USERNAMES)) {
+          while (rs.next()) {
+            loaded.add(rs.getString("username").toLowerCase());
+          }
+        }
+      }
+    } catch (SQLException | IOException e) {
+      System.err.println("Failed to load the username filter: " + e.getMessage());
+      loaded = null;
+    } finally {
+      for (Connection conn : conns) {
+        try {
+          if (conn != null) {
+            conn.close();
+          }
+        } catch (SQLException e) {
+          System.err.println("Failed to close a connection after loading the username filter: " + e.getMessage());
+        }
+      }
+    }
+
+    lock.writeLock().lock();
+    try {
+      if (loaded != null) {
+        for (String name : addedDuringLoad) {
+          loaded.add(name);
+        }
+        filter = loaded;
+      }
+      addedDuringLoad = null;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // FNV-1a, then the splitmix64 finalizer to spread it over both halves
+  private static long hash(String username) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : username.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+    hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+    return hash ^ (hash >>> 31);
+  }
+}
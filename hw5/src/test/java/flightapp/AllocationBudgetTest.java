@@ -0,0 +1,260 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how many bytes each command allocates against the budgets in
+ * allocation-budgets.properties.
+ *
+ * Every command runs through {@link FlightService#execute(Query, String)} on a
+ * {@link StandInDatabase}, so the count covers the command's own work (parsing,
+ * reading rows into flights and reservations, building the response) plus a
+ * small, fixed share for the stand-in's proxies, but not a JDBC driver. Each
+ * command is run enough times to be compiled first, and the median of the
+ * measured runs must stay within its budget plus {@link #TOLERANCE}.
+ *
+ * The budgets are absolute byte counts measured on a HotSpot JVM. On a JVM that
+ * allocates very differently, {@code -Dallocation.budgets.skip=true} still runs
+ * the commands and prints what they allocate without enforcing the budgets.
+ *
+ * When a change is meant to allocate more (or less), update the budget with
+ * the bytes printed for the command.
+ */
+public class AllocationBudgetTest {
+  private static final int WARMUP = 200;
+  private static final int MEASURED = 51;
+
+  // Hashing a password takes tens of milliseconds and its allocations do not
+  // depend on compilation, so commands that hash are run fewer times
+  private static final int HASHING_WARMUP = 5;
+  private static final int HASHING_MEASURED = 11;
+
+  // Slack for differences between JVMs and compilation
+  private static final double TOLERANCE = 0.25;
+
+  private static final boolean ENFORCED = !Boolean.getBoolean("allocation.budgets.skip");
+
+  private static final String USERNAME = "alice";
+  private static final String PASSWORD = "secret";
+
+  private static final String[] FLIGHT_COLUMNS = { "fid", "day_of_month", "carrier_id", "flight_num",
+      "origin_city", "dest_city", "actual_time", "capacity", "price" };
+
+  private static com.sun.management.ThreadMXBean threads;
+  private static Properties budgets;
+  private static StandInDatabase db;
+
+  /**
+   * Prepares a command's state outside of the measurement and returns the
+   * session to run it in.
+   */
+  private interface Setup {
+    Query prepare() throws Exception;
+  }
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+
+    budgets = new Properties();
+    try (InputStream in = AllocationBudgetTest.class.getResourceAsStream("/allocation-budgets.properties")) {
+      assertNotNull("allocation-budgets.properties is missing", in);
+      budgets.load(in);
+    }
+
+    db = new StandInDatabase();
+    db.answer(StandInDatabase.sql("TRANCOUNT_SQL"), new String[] { "tran_count" }, new Object[][] { { 0 } });
+
+    byte[] salt = new byte[16];
+    new Random(1).nextBytes(salt);
+    PBEKeySpec spec = new PBEKeySpec(PASSWORD.toCharArray(), salt,
+        (Integer) StandInDatabase.constant(Query.class, "HASH_STRENGTH"),
+        (Integer) StandInDatabase.constant(Query.class, "KEY_LENGTH"));
+    byte[] hash = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(spec).getEncoded();
+    db.answer(StandInDatabase.sql("FIND_USER"),
+        new String[] { "username", "password", "salt", "balance", "booked_days", "token_version", "reservations_version" },
+        new Object[][] { { USERNAME, hash, salt, 1000, 0, 0, 0 } });
+
+    Object[][] direct = new Object[3][];
+    for (int i = 0; i < direct.length; i++) {
+      direct[i] = flight(100 + i, "Seattle WA", "Boston MA", 300 + i);
+    }
+    db.answer(StandInDatabase.sql("GET_DIRECT_FLIGHTS"), FLIGHT_COLUMNS, direct);
+    db.answer(StandInDatabase.sql("GET_DIRECT_FLIGHTS_AFTER"), FLIGHT_COLUMNS, new Object[0][]);
+
+    Object[][] indirect = new Object[10][];
+    for (int i = 0; i < indirect.length; i++) {
+      indirect[i] = concat(flight(200 + i, "Seattle WA", "Chicago IL", 150 + i),
+          flight(300 + i, "Chicago IL", "Boston MA", 160 + i));
+    }
+    String[] pairColumns = concat(prefixed("F1_", FLIGHT_COLUMNS), prefixed("F2_", FLIGHT_COLUMNS));
+    db.answer(StandInDatabase.sql("GET_INDIRECT_FLIGHTS"), pairColumns, indirect);
+    db.answer(StandInDatabase.sql("GET_INDIRECT_FLIGHTS_AFTER"), pairColumns, indirect);
+
+    Object[][] reservations = new Object[3][];
+    for (int i = 0; i < reservations.length; i++) {
+      reservations[i] = concat(concat(new Object[] { i + 1, 0 }, indirect[i]), new Object[] { 0 });
+    }
+    db.answer(StandInDatabase.sql("GET_RESERVATIONS"),
+        concat(concat(new String[] { "id", "paid" }, pairColumns), new String[] { "reservations_version" }),
+        reservations);
+
+    // Each write reports the version one past the cached lists below
+    db.answer(StandInDatabase.sql("BOOK"), new String[] { "status", "id", "version", "sold_out", "fid" },
+        new Object[][] { { 0, 1, 1, 0, 100 } });
+    db.answer(StandInDatabase.sql("PAY"), new String[] { "status", "balance", "cost", "version" },
+        new Object[][] { { 0, 700, 300, 1 } });
+    db.answer(StandInDatabase.sql("CANCEL"), new String[] { "status", "balance", "version" },
+        new Object[][] { { 0, 1000, 1 } });
+  }
+
+  @After
+  public void tearDown() {
+    ReservationCache.clear();
+  }
+
+  @Test
+  public void create() throws Exception {
+    Query q = session();
+    check("create", HASHING_WARMUP, HASHING_MEASURED, () -> q, "create " + USERNAME + " " + PASSWORD + " 1000",
+        "Created user");
+  }
+
+  @Test
+  public void login() throws Exception {
+    check("login", HASHING_WARMUP, HASHING_MEASURED, AllocationBudgetTest::session,
+        "login " + USERNAME + " " + PASSWORD, "Logged in as");
+  }
+
+  @Test
+  public void resume() throws Exception {
+    String token = SessionTokens.issue(USERNAME, 0);
+    check("resume", WARMUP, MEASURED, AllocationBudgetTest::session, "resume " + token, "Logged in as");
+  }
+
+  @Test
+  public void search() throws Exception {
+    Query q = session();
+    check("search", WARMUP, MEASURED, () -> q, "search \"Seattle WA\" \"Boston MA\" 0 1 10", "Itinerary 0");
+  }
+
+  @Test
+  public void searchNext() throws Exception {
+    Query q = session();
+    check("search_next", WARMUP, MEASURED, () -> {
+      q.transaction_search("Seattle WA", "Boston MA", false, 1, 5);
+      return q;
+    }, "search next", "Itinerary 5");
+  }
+
+  @Test
+  public void book() throws Exception {
+    Query q = loggedIn();
+    q.transaction_search("Seattle WA", "Boston MA", false, 1, 10);
+    check("book", WARMUP, MEASURED, () -> {
+      ReservationCache.put(USERNAME, Collections.emptyList(), 0);
+      return q;
+    }, "book 0", "Booked flight(s)");
+  }
+
+  @Test
+  public void pay() throws Exception {
+    Query q = loggedIn();
+    check("pay", WARMUP, MEASURED, () -> {
+      ReservationCache.put(USERNAME, Collections.singletonList(reservation(1)), 0);
+      return q;
+    }, "pay 1", "Paid reservation");
+  }
+
+  @Test
+  public void reservations() throws Exception {
+    Query q = loggedIn();
+    ReservationCache.put(USERNAME, Arrays.asList(reservation(1), reservation(2), reservation(3)), 0);
+    check("reservations", WARMUP, MEASURED, () -> q, "reservations", "Reservation 1");
+  }
+
+  @Test
+  public void cancel() throws Exception {
+    Query q = loggedIn();
+    check("cancel", WARMUP, MEASURED, () -> {
+      ReservationCache.put(USERNAME, Collections.singletonList(reservation(1)), 0);
+      return q;
+    }, "cancel 1", "Canceled reservation");
+  }
+
+  /**
+   * Runs the command after its setup, warmup + measured times, and checks the
+   * median bytes allocated by the measured runs against the budget.
+   */
+  private static void check(String budgetName, int warmup, int measuredRuns, Setup setup, String command,
+      String expected) throws Exception {
+    String budget = budgets.getProperty(budgetName);
+    assertNotNull("No allocation budget for " + budgetName, budget);
+
+    long id = Thread.currentThread().getId();
+    long[] measured = new long[measuredRuns];
+    for (int i = 0; i < warmup + measuredRuns; i++) {
+      Query q = setup.prepare();
+      long before = threads.getThreadAllocatedBytes(id);
+      String response = FlightService.execute(q, command);
+      long bytes = threads.getThreadAllocatedBytes(id) - before;
+      assertTrue(command + " answered: " + response, response.startsWith(expected));
+      if (i >= warmup) {
+        measured[i - warmup] = bytes;
+      }
+    }
+    Arrays.sort(measured);
+    long median = measured[measuredRuns / 2];
+
+    long limit = Long.parseLong(budget);
+    System.out.println(String.format("%-14s %8d bytes per command, budget %d", budgetName, median, limit));
+    if (ENFORCED) {
+      assertTrue(String.format("%s allocates %d bytes per command, over its budget of %d", budgetName, median, limit),
+          median <= limit * (1 + TOLERANCE));
+    }
+  }
+
+  private static Query session() throws Exception {
+    return new Query("stand-in", db::open);
+  }
+
+  private static Query loggedIn() throws Exception {
+    Query q = session();
+    assertTrue(q.transaction_login(USERNAME, PASSWORD).startsWith("Logged in as"));
+    return q;
+  }
+
+  private static Query.Reservation reservation(int id) {
+    return new Query.Reservation(id, new Query.Flight(100 + id, 1, "AS", "1", "Seattle WA", "Boston MA", 300, 100, 300),
+        null, 0, 0);
+  }
+
+  private static Object[] flight(int fid, String origin, String destination, int time) {
+    return new Object[] { fid, 1, "AS", String.valueOf(fid), origin, destination, time, 100, 200 };
+  }
+
+  private static String[] prefixed(String prefix, String[] columns) {
+    String[] names = new String[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      names[i] = prefix + columns[i];
+    }
+    return names;
+  }
+
+  private static <T> T[] concat(T[] first, T[] second) {
+    T[] both = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, both, first.length, second.length);
+    return both;
+  }
+}
@@ -28,7 +28,8 @@ public class FlightServiceTest {
    */
   private static final int RESPONSE_TIME = 60;
   /**
-   * Thread pool used to run different users
+   * Thread pool used to run different users, one session per user. Set
+   * -Dflightapp.sessions=virtual to run each user on a virtual thread.
    */
   private static ExecutorService pool;
 
@@ -99,12 +100,7 @@ public class FlightServiceTest {
 
     @Override
     public String call() {
-      StringBuffer sb = new StringBuffer();
-      for (String cmd : cmds) {
-        sb.append(FlightService.execute(q, cmd));
-      }
-
-      return sb.toString();
+      return SessionRunner.runSession(q, cmds);
     }
 
     public void shutdown() throws Exception {
@@ -201,7 +197,7 @@ public class FlightServiceTest {
   @BeforeClass
   public static void setup() {
     System.out.println("running setup");
-    pool = Executors.newFixedThreadPool(MAX_USERS);
+    pool = SessionRunner.newExecutor(SessionRunner.Mode.fromSettings(), MAX_USERS);
     initCredential();
     try {
       Connection conn = serverURL == null ? Query.openConnectionFromDbConn()
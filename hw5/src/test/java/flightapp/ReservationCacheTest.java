@@ -0,0 +1,73 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link ReservationCache} drops the least recently used users
+ * past its limit, but never a user whose lock is held, not even by the thread
+ * that drops entries.
+ */
+public class ReservationCacheTest {
+  private static final int MAX_USERS = 10;
+
+  @Before
+  public void setUp() {
+    ReservationCache.setMaxUsers(MAX_USERS);
+  }
+
+  @After
+  public void tearDown() {
+    ReservationCache.setMaxUsers(0);
+    ReservationCache.clear();
+  }
+
+  @Test
+  public void leastRecentlyUsedUsersAreDropped() {
+    ReservationCache.put("evicted", Collections.emptyList(), 1);
+    touchOthers();
+    assertNull(ReservationCache.get("evicted"));
+  }
+
+  @Test
+  public void heldUsersAreKeptAndStayLocked() throws Exception {
+    Lock held = ReservationCache.lock("held");
+    ExecutorService other = Executors.newSingleThreadExecutor();
+    try {
+      ReservationCache.put("held", Collections.emptyList(), 1);
+      // Touched while held, by the thread that holds the lock
+      touchOthers();
+      assertTrue(ReservationCache.isCurrent("held", 1));
+
+      Future<?> second = other.submit(() -> ReservationCache.lock("held").unlock());
+      try {
+        second.get(100, TimeUnit.MILLISECONDS);
+        fail("A second session locked a user whose lock is held");
+      } catch (TimeoutException e) {
+        // Still waiting, as it should
+      }
+      held.unlock();
+      held = null;
+      second.get(5, TimeUnit.SECONDS);
+    } finally {
+      if (held != null) {
+        held.unlock();
+      }
+      other.shutdownNow();
+    }
+  }
+
+  /**
+   * Uses enough other users to go well past the limit.
+   */
+  private static void touchOthers() {
+    for (int i = 0; i < 3 * MAX_USERS; i++) {
+      ReservationCache.put("user" + i, Collections.emptyList(), 0);
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Compares running sessions on platform threads against virtual threads.
+ *
+ * Each simulated session opens its own {@link Query} on a shared
+ * {@link StandInDatabase} and runs its commands through
+ * {@link SessionRunner#runSession(Query, List)}: it resumes a session with a
+ * token, then alternates searches and {@code search next}. Every statement
+ * blocks for one round trip in the stand-in, so the sessions run the real
+ * command code and only the database is simulated. Run with:
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=flightapp.SessionBenchmark
+ *
+ * Optional arguments: [sessions] [commands per session] [round trip millis] [platform threads]
+ *
+ * The stand-in blocks with {@code Thread.sleep}, which parks a virtual thread.
+ * The mssql-jdbc driver this project uses (8.2) still waits for the server
+ * inside {@code synchronized} blocks, which pins a virtual thread to its
+ * carrier, so against a real database VIRTUAL scales no further than the
+ * number of carriers until the driver stops doing so. The numbers here are
+ * what the sessions themselves allow.
+ */
+public class SessionBenchmark {
+  private static final int SESSIONS = 10000;
+  private static final int COMMANDS_PER_SESSION = 8;
+  private static final int ROUND_TRIP_MILLIS = 10;
+  private static final int PLATFORM_THREADS = 200;
+
+  private static final String USERNAME = "alice";
+
+  private static final String[] FLIGHT_COLUMNS = { "fid", "day_of_month", "carrier_id", "flight_num",
+      "origin_city", "dest_city", "actual_time", "capacity", "price" };
+
+  public static void main(String[] args) throws Exception {
+    int sessions = args.length > 0 ? Integer.parseInt(args[0]) : SESSIONS;
+    int commands = args.length > 1 ? Integer.parseInt(args[1]) : COMMANDS_PER_SESSION;
+    int roundTrip = args.length > 2 ? Integer.parseInt(args[2]) : ROUND_TRIP_MILLIS;
+    int platformThreads = args.length > 3 ? Integer.parseInt(args[3]) : PLATFORM_THREADS;
+
+    if (!SessionRunner.virtualThreadsSupported()) {
+      System.out.println("Virtual threads need Java 21+, VIRTUAL falls back to a thread per session");
+    }
+
+    StandInDatabase db = database();
+    List<String> script = script(commands);
+    // Once without delays, so both modes run compiled code
+    run(SessionRunner.Mode.PLATFORM, db, script, Math.min(sessions, 1000), platformThreads);
+
+    db.delay(roundTrip);
+    System.out.println(String.format("%d sessions, %d commands each, %d ms per round trip, %d platform threads",
+        sessions, commands, roundTrip, platformThreads));
+    for (SessionRunner.Mode mode : SessionRunner.Mode.values()) {
+      long[] result = run(mode, db, script, sessions, platformThreads);
+      long elapsed = result[0];
+      System.out.println(String.format("%-8s wall %6d ms  %8.0f commands/s  session p50 %6d ms  p99 %6d ms", mode,
+          TimeUnit.NANOSECONDS.toMillis(elapsed), (double) sessions * commands / (elapsed / 1e9),
+          TimeUnit.NANOSECONDS.toMillis(result[1]), TimeUnit.NANOSECONDS.toMillis(result[2])));
+    }
+  }
+
+  /**
+   * Runs the sessions and returns the wall time and the median and 99th
+   * percentile session latency, in nanoseconds.
+   */
+  private static long[] run(SessionRunner.Mode mode, StandInDatabase db, List<String> script, int sessions,
+      int platformThreads) throws Exception {
+    ExecutorService executor = SessionRunner.newExecutor(mode, platformThreads);
+    long[] latencies = new long[sessions];
+    List<Future<String>> futures = new ArrayList<>(sessions);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < sessions; i++) {
+      int session = i;
+      long submitted = System.nanoTime();
+      futures.add(executor.submit(() -> {
+        Query q = new Query("stand-in", db::open);
+        String responses = SessionRunner.runSession(q, script);
+        latencies[session] = System.nanoTime() - submitted;
+        return responses;
+      }));
+    }
+    for (Future<String> f : futures) {
+      String responses = f.get();
+      if (!responses.startsWith("Logged in as")) {
+        throw new IllegalStateException("Session failed: " + responses);
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    executor.shutdown();
+
+    Arrays.sort(latencies);
+    return new long[] { elapsed, latencies[sessions / 2], latencies[(int) (sessions * 0.99)] };
+  }
+
+  private static List<String> script(int commands) {
+    List<String> script = new ArrayList<>();
+    script.add("resume " + SessionTokens.issue(USERNAME, 0));
+    for (int c = 1; c < commands; c++) {
+      script.add(c % 2 == 1 ? "search \"Seattle WA\" \"Boston MA\" 0 1 5" : "search next");
+    }
+    return script;
+  }
+
+  private static StandInDatabase database() {
+    StandInDatabase db = new StandInDatabase();
+    db.answer(StandInDatabase.sql("TRANCOUNT_SQL"), new String[] { "tran_count" }, new Object[][] { { 0 } });
+    db.answer(StandInDatabase.sql("FIND_USER"),
+        new String[] { "username", "balance", "token_version", "reservations_version" },
+        new Object[][] { { USERNAME, 1000, 0, 0 } });
+    db.answer(StandInDatabase.sql("GET_RESERVATIONS"), new String[] { "id", "reservations_version" },
+        new Object[][] { { null, 0 } });
+
+    Object[][] direct = new Object[10][];
+    for (int i = 0; i < direct.length; i++) {
+      direct[i] = new Object[] { 100 + i, 1, "AS", String.valueOf(100 + i), "Seattle WA", "Boston MA", 300 + i, 100,
+          200 };
+    }
+    db.answer(StandInDatabase.sql("GET_DIRECT_FLIGHTS"), FLIGHT_COLUMNS, direct);
+    db.answer(StandInDatabase.sql("GET_DIRECT_FLIGHTS_AFTER"), FLIGHT_COLUMNS, direct);
+    return db;
+  }
+}
@@ -0,0 +1,196 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how users are spread over shards, how a booking is split between the
+ * home database and the user's shard, and how {@link ShardRebalancer} moves
+ * users, with one {@link StandInDatabase} standing in for each shard.
+ */
+public class ShardingTest {
+  private static final int SHARDS = 2;
+
+  private static final String[] FLIGHT_COLUMNS = { "fid", "day_of_month", "carrier_id", "flight_num",
+      "origin_city", "dest_city", "actual_time", "capacity", "price" };
+
+  private StandInDatabase[] shards;
+
+  @Before
+  public void setUp() {
+    shards = new StandInDatabase[SHARDS];
+    for (int i = 0; i < SHARDS; i++) {
+      shards[i] = new StandInDatabase();
+      shards[i].answer(StandInDatabase.sql("TRANCOUNT_SQL"), new String[] { "tran_count" }, new Object[][] { { 0 } });
+    }
+    System.setProperty("flightapp.shards", String.valueOf(SHARDS));
+    ShardRouter.setFactories(shard -> shards[shard]::open);
+  }
+
+  @After
+  public void tearDown() {
+    System.clearProperty("flightapp.shards");
+    ShardRouter.setFactories(null);
+    ReservationCache.clear();
+  }
+
+  @Test
+  public void shardsAreStableAndInRange() {
+    for (int i = 0; i < 1000; i++) {
+      int shard = ShardRouter.shardOf("user" + i, 4);
+      assertTrue(shard >= 0 && shard < 4);
+      assertEquals(shard, ShardRouter.shardOf("USER" + i, 4));
+    }
+  }
+
+  @Test
+  public void growingMovesUsersOnlyToTheNewShard() {
+    int users = 10000;
+    int moved = 0;
+    for (int i = 0; i < users; i++) {
+      int before = ShardRouter.shardOf("user" + i, 4);
+      int after = ShardRouter.shardOf("user" + i, 5);
+      if (before != after) {
+        assertEquals(4, after);
+        moved++;
+      }
+    }
+    // About a fifth of the users should move
+    assertTrue("moved " + moved, moved > users / 5 * 0.8 && moved < users / 5 * 1.2);
+  }
+
+  @Test
+  public void bookingTakesSeatsAtHomeAndInsertsOnTheUsersShard() throws Exception {
+    String username = userOn(1);
+    List<List<Object>> holds = shards[0].watch(StandInDatabase.sql("HOLD_SEATS"));
+    List<List<Object>> homeBookings = shards[0].watch(StandInDatabase.sql("BOOK_ON_SHARD"));
+    List<List<Object>> shardBookings = shards[1].watch(StandInDatabase.sql("BOOK_ON_SHARD"));
+    answerHold(7);
+    shards[1].answer(StandInDatabase.sql("BOOK_ON_SHARD"), new String[] { "status", "version" },
+        new Object[][] { { 0, 1 } });
+
+    Query q = searched(username);
+    assertEquals("Booked flight(s), reservation ID: 7\n", q.transaction_book(0));
+
+    assertEquals(1, holds.size());
+    assertTrue(homeBookings.isEmpty());
+    assertEquals(Collections.singletonList(Arrays.asList(7, username, 100, null)), shardBookings);
+  }
+
+  @Test
+  public void sameDayOnTheShardGivesTheSeatsBack() throws Exception {
+    String username = userOn(1);
+    List<List<Object>> releases = shards[0].watch(StandInDatabase.sql("RELEASE_SEATS"));
+    answerHold(7);
+    shards[1].answer(StandInDatabase.sql("BOOK_ON_SHARD"), new String[] { "status" }, new Object[][] { { 1 } });
+
+    Query q = searched(username);
+    assertEquals("You cannot book two flights in the same day\n", q.transaction_book(0));
+    assertEquals(Collections.singletonList(Collections.singletonList(7)), releases);
+  }
+
+  @Test
+  public void deadlocksAreRetriedABoundedNumberOfTimes() throws Exception {
+    String username = userOn(1);
+    List<List<Object>> holds = shards[0].watch(StandInDatabase.sql("HOLD_SEATS"));
+    shards[0].fail(StandInDatabase.sql("HOLD_SEATS"), 1205);
+
+    Query q = searched(username);
+    assertEquals("Booking failed\n", q.transaction_book(0));
+    assertEquals(1 + (int) StandInDatabase.constant(Query.class, "MAX_DEADLOCK_RETRIES"), holds.size());
+  }
+
+  @Test
+  public void rebalancerMovesUsersToTheirShard() throws Exception {
+    String staying = userOn(0);
+    String moving = userOn(1);
+    shards[0].answer(rebalancerSql("GET_USERNAMES"), new String[] { "username" },
+        new Object[][] { { staying }, { moving } });
+    shards[0].answer(rebalancerSql("GET_USER"),
+        new String[] { "username", "password", "salt", "balance", "booked_days", "token_version",
+            "reservations_version" },
+        new Object[][] { { moving, new byte[1], new byte[1], 100, 1, 2, 3 } });
+    shards[0].answer(String.format(rebalancerSql("GET_USER_RESERVATIONS"), "RESERVATIONS"),
+        new String[] { "id", "userid", "flight1", "flight2", "paid", "cancelled" },
+        new Object[][] { { 5, moving, 100, null, 1, 0 } });
+    List<List<Object>> inserted = shards[1].watch(rebalancerSql("INSERT_USER"));
+    List<List<Object>> insertedReservations = shards[1]
+        .watch(String.format(rebalancerSql("INSERT_RESERVATION"), "RESERVATIONS"));
+    List<List<Object>> deleted = shards[0].watch(rebalancerSql("DELETE_USER"));
+
+    Connection[] conns = { shards[0].open(), shards[1].open() };
+    assertEquals(1, ShardRebalancer.moveUsers(conns, SHARDS));
+
+    assertEquals(1, inserted.size());
+    assertEquals(moving, inserted.get(0).get(0));
+    // Balance, booked days, token version and reservations version
+    assertEquals(Arrays.asList(100, 1, 2, 3), inserted.get(0).subList(3, 7));
+    assertEquals(Collections.singletonList(Arrays.asList(5, moving, 100, null, 1, 0)), insertedReservations);
+    assertEquals(Collections.singletonList(Collections.singletonList(moving)), deleted);
+  }
+
+  @Test
+  public void rebalancerRecountsSeatsFromEveryShard() throws Exception {
+    String[] seatColumns = { "id", "flight1", "flight2", "cancelled" };
+    shards[0].answer(rebalancerSql("GET_ALL_SEATS"), seatColumns,
+        new Object[][] { { 1, 100, null, 0 }, { 2, 101, 102, 1 } });
+    shards[1].answer(rebalancerSql("GET_ALL_SEATS"), seatColumns, new Object[][] { { 3, 100, null, 0 } });
+    List<List<Object>> cleared = shards[0].watch(rebalancerSql("CLEAR_BOOKED_SEATS"));
+    List<List<Object>> counted = shards[0].watch(rebalancerSql("INSERT_BOOKED_SEATS"));
+
+    Connection[] conns = { shards[0].open(), shards[1].open() };
+    assertEquals(3, ShardRebalancer.recountSeats(conns, SHARDS));
+
+    assertEquals(1, cleared.size());
+    assertEquals(Arrays.asList(Arrays.asList(1, 100, null, 0), Arrays.asList(2, 101, 102, 1),
+        Arrays.asList(3, 100, null, 0)), counted);
+  }
+
+  /**
+   * Returns a username that belongs on the given shard, and answers for it
+   * there as a user with no reservations.
+   */
+  private String userOn(int shard) {
+    String username = null;
+    for (int i = 0; username == null; i++) {
+      if (ShardRouter.shardOf("user" + i, SHARDS) == shard) {
+        username = "user" + i;
+      }
+    }
+    shards[shard].answer(StandInDatabase.sql("FIND_USER"),
+        new String[] { "username", "balance", "token_version", "reservations_version" },
+        new Object[][] { { username, 1000, 0, 0 } });
+    shards[shard].answer(StandInDatabase.sql("GET_RESERVATIONS"), new String[] { "id", "reservations_version" },
+        new Object[][] { { null, 0 } });
+    return username;
+  }
+
+  /**
+   * Answers HOLD_SEATS on the home database with the given reservation id.
+   */
+  private void answerHold(int id) {
+    shards[0].answer(StandInDatabase.sql("HOLD_SEATS"), new String[] { "status", "id", "fid", "sold_out" },
+        new Object[][] { { 0, id, 100, 0 } });
+  }
+
+  /**
+   * Resumes a session as the given user and searches for one direct flight,
+   * itinerary 0.
+   */
+  private Query searched(String username) throws Exception {
+    shards[0].answer(StandInDatabase.sql("GET_DIRECT_FLIGHTS"), FLIGHT_COLUMNS,
+        new Object[][] { { 100, 1, "AS", "100", "Seattle WA", "Boston MA", 300, 100, 200 } });
+    Query q = new Query("stand-in", shards[0]::open);
+    assertEquals("Logged in as " + username + "\n", q.transaction_resume(SessionTokens.issue(username, 0)));
+    assertTrue(q.transaction_search("Seattle WA", "Boston MA", true, 1, 1).startsWith("Itinerary 0"));
+    return q;
+  }
+
+  private static String rebalancerSql(String constant) {
+    return (String) StandInDatabase.constant(ShardRebalancer.class, constant);
+  }
+}
@@ -0,0 +1,210 @@
+package flightapp;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * An in-process stand-in for the database, for tests that run commands
+ * without SQL Server.
+ *
+ * Connections are proxies that answer each statement with the rows given for
+ * its SQL by {@link #answer(String, String[], Object[][])}, whatever its
+ * parameters, and with no rows if none were given. Updates report one row.
+ * Nothing is stored, so a test sets up what each command should read, and
+ * checks what a command wrote with {@link #watch(String)}. Several stand-ins
+ * can stand in for several databases, such as shards.
+ */
+class StandInDatabase {
+  private final Map<String, Rows> answers = new HashMap<>();
+  private final Map<String, Integer> failures = new HashMap<>();
+  private final Map<String, List<List<Object>>> watched = new HashMap<>();
+  private volatile long roundTripMillis;
+
+  /**
+   * Rows of a result set, with their columns by name.
+   */
+  private static class Rows {
+    final Map<String, Integer> columns = new HashMap<>();
+    final Object[][] values;
+
+    Rows(String[] names, Object[][] values) {
+      for (int i = 0; i < names.length; i++) {
+        columns.put(names[i].toLowerCase(), i);
+      }
+      this.values = values;
+    }
+  }
+
+  /**
+   * Answers statements with the given SQL with the given rows from now on.
+   */
+  void answer(String sql, String[] columns, Object[][] rows) {
+    answers.put(sql, new Rows(columns, rows));
+  }
+
+  /**
+   * Makes every statement block for the given time before it answers, as a
+   * round trip to a database would.
+   */
+  void delay(long millis) {
+    roundTripMillis = millis;
+  }
+
+  /**
+   * Fails statements with the given SQL with the given error code from now on,
+   * e.g. 1205 for a deadlock.
+   */
+  void fail(String sql, int errorCode) {
+    failures.put(sql, errorCode);
+  }
+
+  /**
+   * Records every execution of statements with the given SQL from now on, and
+   * returns the list the parameters of each are added to in order. Only
+   * watched statements keep their parameters, so watching nothing adds no
+   * allocations to a command.
+   */
+  List<List<Object>> watch(String sql) {
+    return watched.computeIfAbsent(sql, k -> new ArrayList<>());
+  }
+
+  /**
+   * Returns one of the SQL constants of {@link Query}, so answers can be given
+   * for its statements.
+   */
+  static String sql(String constant) {
+    return (String) constant(Query.class, constant);
+  }
+
+  static Object constant(Class<?> owner, String name) {
+    try {
+      Field field = owner.getDeclaredField(name);
+      field.setAccessible(true);
+      return field.get(null);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalArgumentException("No constant " + owner.getSimpleName() + "." + name, e);
+    }
+  }
+
+  Connection open() {
+    return proxy(Connection.class, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "prepareStatement":
+          return statement(PreparedStatement.class, (String) args[0]);
+        case "createStatement":
+          return statement(Statement.class, null);
+        case "getAutoCommit":
+        case "isValid":
+          return true;
+        default:
+          return defaultValue(method.getReturnType());
+      }
+    });
+  }
+
+  private Object statement(Class<? extends Statement> type, String preparedSql) {
+    List<List<Object>> executions = preparedSql != null ? watched.get(preparedSql) : null;
+    List<Object> parameters = executions != null ? new ArrayList<>() : null;
+    return proxy(type, (proxy, method, args) -> {
+      String name = method.getName();
+      if (parameters != null && name.startsWith("set") && args != null && args.length >= 2
+          && args[0] instanceof Integer) {
+        int index = (Integer) args[0] - 1;
+        while (parameters.size() <= index) {
+          parameters.add(null);
+        }
+        parameters.set(index, name.equals("setNull") ? null : args[1]);
+        return null;
+      }
+      if (name.equals("executeBatch")) {
+        // Its statements were recorded as they were added
+        return new int[0];
+      }
+      if (name.startsWith("execute") || name.equals("addBatch")) {
+        String sql = preparedSql != null ? preparedSql : (String) args[0];
+        if (parameters != null) {
+          executions.add(new ArrayList<>(parameters));
+        } else if (preparedSql == null && watched.containsKey(sql)) {
+          watched.get(sql).add(Collections.emptyList());
+        }
+        if (roundTripMillis > 0) {
+          try {
+            Thread.sleep(roundTripMillis);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted", e);
+          }
+        }
+        Integer errorCode = failures.get(sql);
+        if (errorCode != null) {
+          throw new SQLException("Stand-in failure", "S0001", errorCode);
+        }
+      }
+
+      switch (name) {
+        case "executeQuery":
+          return resultSet(preparedSql != null ? preparedSql : (String) args[0]);
+        case "executeUpdate":
+          return 1;
+        case "clearParameters":
+          if (parameters != null) {
+            parameters.clear();
+          }
+          return null;
+        case "getUpdateCount":
+          return -1;
+        default:
+          return defaultValue(method.getReturnType());
+      }
+    });
+  }
+
+  private ResultSet resultSet(String sql) {
+    Rows rows = answers.getOrDefault(sql, new Rows(new String[0], new Object[0][]));
+    return proxy(ResultSet.class, new InvocationHandler() {
+      int row = -1;
+      Object last;
+
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("next")) {
+          return ++row < rows.values.length;
+        }
+        if (name.equals("wasNull")) {
+          return last == null;
+        }
+        if (!name.startsWith("get") || args == null || args.length != 1) {
+          return defaultValue(method.getReturnType());
+        }
+
+        int column = args[0] instanceof Integer ? (Integer) args[0] - 1
+            : rows.columns.getOrDefault(((String) args[0]).toLowerCase(), -1);
+        if (column < 0) {
+          throw new IllegalArgumentException("No column " + args[0]);
+        }
+        last = rows.values[row][column];
+        return last == null ? defaultValue(method.getReturnType()) : last;
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+    return (T) Proxy.newProxyInstance(StandInDatabase.class.getClassLoader(), new Class<?>[] { type }, handler);
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    } else if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 0L;
+    } else if (type == double.class) {
+      return 0.0;
+    }
+    return null;
+  }
+}